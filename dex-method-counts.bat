@@ -1 +1,16 @@
-java -jar build\jar\dex-method-counts.jar %*
+@echo off
+setlocal EnableDelayedExpansion
+rem Use the AppCDS archive made by "ant cds" only with the java that made it
+rem (whose home is saved next to it): an archive is only valid for that JVM,
+rem and one older than JDK 13 won't even start with these options.
+set usearchive=
+if exist build\jar\dex-method-counts.jsa if exist build\jar\dex-method-counts.jsa.jvm (
+    set /p archivejvm=<build\jar\dex-method-counts.jsa.jvm
+    for %%j in (java.exe) do set javacmd=%%~$PATH:j
+    if /i "!javacmd!"=="!archivejvm!\bin\java.exe" set usearchive=1
+)
+if defined usearchive (
+    java -XX:SharedArchiveFile=build\jar\dex-method-counts.jsa -Xshare:auto -Xlog:disable -Xlog:all=warning:stderr -jar build\jar\dex-method-counts.jar %*
+) else (
+    java -jar build\jar\dex-method-counts.jar %*
+)
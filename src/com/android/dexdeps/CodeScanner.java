@@ -0,0 +1,238 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dexdeps;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Walks the bytecode of a class's methods, reporting the method and field
+ * IDs that its invoke-*, iget/iput and sget/sput instructions refer to.
+ *
+ * Each scanner reads through its own view of the DEX data, using only
+ * absolute reads, so several of them can scan the classes of one loaded
+ * DexData in parallel.  A single scanner isn't thread-safe.
+ */
+public class CodeScanner {
+
+    /**
+     * Receives the references found in a class's bytecode.  A reference is
+     * reported each time it's used, not once per class.
+     */
+    public interface Visitor {
+        void methodReferenced(int methodIdx);
+
+        void fieldReferenced(int fieldIdx);
+    }
+
+    private static final byte KIND_OTHER = 0;
+    private static final byte KIND_METHOD = 1;
+    private static final byte KIND_FIELD = 2;
+
+    /** The width of each opcode's format, in 16-bit code units. */
+    private static final byte[] WIDTHS = new byte[256];
+
+    /** What the second code unit of each opcode refers to. */
+    private static final byte[] KINDS = new byte[256];
+
+    static {
+        Arrays.fill(WIDTHS, (byte) 1);
+        setWidth(2, 0x02, 0x05, 0x08, 0x13, 0x15, 0x16, 0x19, 0x1a, 0x1c, 0x1f, 0x20,
+                0x22, 0x23, 0x29, 0xfe, 0xff);
+        setWidth(3, 0x03, 0x06, 0x09, 0x14, 0x17, 0x1b, 0x24, 0x25, 0x26, 0x2a, 0x2b,
+                0x2c, 0xfc, 0xfd);
+        setWidth(5, 0x18);
+        setWidth(4, 0xfa, 0xfb);
+        setRange(2, 0x2d, 0x3d);        // cmpkind, if-test, if-testz
+        setRange(2, 0x44, 0x6d);        // arrayop, iinstanceop, sstaticop
+        setRange(3, 0x6e, 0x72);        // invoke-kind
+        setRange(3, 0x74, 0x78);        // invoke-kind/range
+        setRange(2, 0x90, 0xaf);        // binop
+        setRange(2, 0xd0, 0xe2);        // binop/lit16, binop/lit8
+
+        for (int op = 0x52; op <= 0x6d; op++) {
+            KINDS[op] = KIND_FIELD;
+        }
+        for (int op = 0x6e; op <= 0x78; op++) {
+            KINDS[op] = op == 0x73 ? KIND_OTHER : KIND_METHOD;
+        }
+        KINDS[0xfa] = KIND_METHOD;
+        KINDS[0xfb] = KIND_METHOD;
+    }
+
+    private static void setWidth(int width, int... opcodes) {
+        for (int op : opcodes) {
+            WIDTHS[op] = (byte) width;
+        }
+    }
+
+    private static void setRange(int width, int first, int last) {
+        for (int op = first; op <= last; op++) {
+            WIDTHS[op] = (byte) width;
+        }
+    }
+
+    private final DexData mDexData;
+    private final ByteBuffer mBuf;
+    private final int mMethodIdCount;
+    private final int mFieldIdCount;
+    private int mPos;
+
+    CodeScanner(DexData dexData, ByteBuffer dexBuffer) {
+        mDexData = dexData;
+        mBuf = dexBuffer.duplicate().order(dexBuffer.order());
+        mMethodIdCount = dexData.getMethodIdCount();
+        mFieldIdCount = dexData.getFieldIdCount();
+    }
+
+    /**
+     * Reports the references made by the code of a class, given an index
+     * into the class_defs table.
+     *
+     * @throws DexDataException if the class data or code is malformed
+     */
+    public void scanClass(int classDefIdx, Visitor visitor) {
+        int classDataOff = mDexData.getClassDefDataOffset(classDefIdx);
+        if (classDataOff == 0) {
+            return;
+        }
+        try {
+            scanClassData(classDataOff, visitor);
+        } catch (IndexOutOfBoundsException ioobe) {
+            throw new DexDataException();
+        } catch (BufferUnderflowException bue) {
+            throw new DexDataException();
+        }
+    }
+
+    private void scanClassData(int pos, Visitor visitor) {
+        mPos = pos;
+        int staticFieldsSize = readUnsignedLeb128();
+        int instanceFieldsSize = readUnsignedLeb128();
+        int directMethodsSize = readUnsignedLeb128();
+        int virtualMethodsSize = readUnsignedLeb128();
+
+        for (int j = 0; j < staticFieldsSize + instanceFieldsSize; j++) {
+            /* field_idx_diff = */ readUnsignedLeb128();
+            /* access_flags = */ readUnsignedLeb128();
+        }
+        for (int j = 0; j < directMethodsSize + virtualMethodsSize; j++) {
+            /* method_idx_diff = */ readUnsignedLeb128();
+            /* access_flags = */ readUnsignedLeb128();
+            int codeOff = readUnsignedLeb128();
+            if (codeOff != 0) {
+                scanCode(codeOff, visitor);
+            }
+        }
+    }
+
+    /**
+     * Walks the insns of a code_item, stepping over the switch and array
+     * data payloads that are embedded in it.
+     */
+    private void scanCode(int codeOff, Visitor visitor) {
+        ByteBuffer buf = mBuf;
+        // registers_size, ins_size, outs_size, tries_size, debug_info_off
+        int insnsSize = buf.getInt(codeOff + 2 + 2 + 2 + 2 + 4);
+        int insns = codeOff + 2 + 2 + 2 + 2 + 4 + 4;
+        if (insnsSize < 0) {
+            throw new DexDataException();
+        }
+
+        int pc = 0;
+        while (pc < insnsSize) {
+            int unit = buf.getShort(insns + pc * 2) & 0xffff;
+            int op = unit & 0xff;
+            int width;
+            if (op == 0x00 && unit != 0) {
+                width = payloadWidth(unit, insns + pc * 2);
+            } else {
+                width = WIDTHS[op];
+                int kind = KINDS[op];
+                if (kind != KIND_OTHER) {
+                    int idx = buf.getShort(insns + pc * 2 + 2) & 0xffff;
+                    if (kind == KIND_METHOD) {
+                        if (idx >= mMethodIdCount) {
+                            throw new DexDataException();
+                        }
+                        visitor.methodReferenced(idx);
+                    } else {
+                        if (idx >= mFieldIdCount) {
+                            throw new DexDataException();
+                        }
+                        visitor.fieldReferenced(idx);
+                    }
+                }
+            }
+            pc += width;
+        }
+    }
+
+    /**
+     * Returns the width in code units of the pseudo-instruction whose
+     * first unit is given.
+     */
+    private int payloadWidth(int ident, int pos) {
+        ByteBuffer buf = mBuf;
+        switch (ident) {
+            case 0x0100: {      // packed-switch-payload
+                int size = buf.getShort(pos + 2) & 0xffff;
+                return 4 + size * 2;
+            }
+            case 0x0200: {      // sparse-switch-payload
+                int size = buf.getShort(pos + 2) & 0xffff;
+                return 2 + size * 4;
+            }
+            case 0x0300: {      // fill-array-data-payload
+                int elementWidth = buf.getShort(pos + 2) & 0xffff;
+                long size = buf.getInt(pos + 4) & 0xffffffffL;
+                long width = 4 + (size * elementWidth + 1) / 2;
+                if (width > Integer.MAX_VALUE) {
+                    throw new DexDataException();
+                }
+                return (int) width;
+            }
+            default:
+                // A nop with a non-zero high byte; treat it as one.
+                return 1;
+        }
+    }
+
+    private int readUnsignedLeb128() {
+        ByteBuffer buf = mBuf;
+        int pos = mPos;
+        int result = buf.get(pos++);
+        if (result < 0) {
+            result &= 0x7f;
+            int val = buf.get(pos++);
+            result |= (val & 0x7f) << 7;
+            if (val < 0) {
+                val = buf.get(pos++);
+                result |= (val & 0x7f) << 14;
+                if (val < 0) {
+                    val = buf.get(pos++);
+                    result |= (val & 0x7f) << 21;
+                    if (val < 0) {
+                        val = buf.get(pos++);
+                        result |= val << 28;
+                    }
+                }
+            }
+        }
+        mPos = pos;
+        return result;
+    }
+}
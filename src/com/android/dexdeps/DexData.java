@@ -16,31 +16,239 @@
 
 package com.android.dexdeps;
 
+import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
+import java.util.EnumSet;
 
 /**
  * Data extracted from a DEX file.
  */
 public class DexData {
+    private static final int HEADER_SIZE = 0x70;
+
     private RandomAccessFile mDexFile;
+    private ByteBuffer mDexBuffer;
+    private int mBufferBase;                // file offset of mDexBuffer's start
     private HeaderItem mHeaderItem;
-    private String[] mStrings;              // strings from string_data_*
-    private TypeIdItem[] mTypeIds;
-    private ProtoIdItem[] mProtoIds;
-    private FieldIdItem[] mFieldIds;
-    private MethodIdItem[] mMethodIds;
-    private ClassDefItem[] mClassDefs;
+    private MapItem[] mMapItems;            // contents of the map_list
 
-    private byte tmpBuf[] = new byte[4];
-    private boolean isBigEndian = false;
+    /*
+     * The ID tables are kept as parallel arrays of primitives, sized by the
+     * header counts rather than by their length, so that they can be reused
+     * for the next DEX file (see reset()) instead of being reallocated.
+     *
+     * With setOffHeap(), the IntTables live in direct buffers, and strings
+     * aren't decoded into mStrings but looked up in the DEX data when asked
+     * for (through the symbol table, if there is one).
+     */
+    private boolean mOffHeap;
+    private IntTable mStringOffsets;                // offsets from string_ids
+    private String[] mStrings = new String[0];      // strings from string_data_*
+    private boolean[] mWantedStrings = new boolean[0];
+    private IntTable mTypeDescriptorIdx;            // type_ids: index into string_ids
+    private boolean[] mTypeInternal = new boolean[0]; // defined within this DEX file?
+    private IntTable mProtoShortyIdx;               // proto_ids: index into string_ids
+    private IntTable mProtoReturnTypeIdx;           // index into type_ids
+    private IntTable mProtoParametersOff;           // file offset to a type_list
+    private IntTable mProtoTypesStart;              // offset into mTypeLists
+    private IntTable mTypeLists;                    // (size, type_idx...) per proto
+    private IntTable mFieldClassIdx;                // field_ids: index into type_ids
+    private IntTable mFieldTypeIdx;                 // index into type_ids
+    private IntTable mFieldNameIdx;                 // index into string_ids
+    private IntTable mMethodClassIdx;               // method_ids: index into type_ids
+    private IntTable mMethodProtoIdx;               // index into proto_ids
+    private IntTable mMethodNameIdx;                // index into string_ids
+    private IntTable mClassDefClassIdx;             // class_defs: index into type_ids
+    private IntTable mClassDefDataOff;              // file offset to a class_data_item
+    private int[] mClassDefMethods = new int[0];    // direct + virtual methods
+    private long[] mClassDefCodeSize = new long[0]; // bytes of bytecode in those methods
+    private long[] mSortKeys = new long[0];         // scratch for ordering reads
+    private long[] mCodeItems = new long[16];       // (code_off, class def) pairs
+    private int mCodeItemCount;
+
+    /*
+     * When reading from a stream, mDexBuffer is a window onto the part of
+     * the file that the current load step reads, and mBufferBase is where
+     * that starts.
+     */
+    private InputStream mStream;
+    private long mStreamPosition;
+    private ByteBuffer mWindow;
+
+    private LoadListener mLoadListener;
+    private int mFirstSeek = 0;             // start of the current load step
+    private final Mutf8 mMutf8 = new Mutf8();
+    private SymbolTable mSymbols;
+    // Strings looked up after loading are decoded with a scratch buffer of
+    // the querying thread's own.
+    private final ThreadLocal<Mutf8> mQueryMutf8 = new ThreadLocal<Mutf8>() {
+        @Override
+        protected Mutf8 initialValue() {
+            return new Mutf8();
+        }
+    };
 
     /**
-     * Constructs a new DexData for this file.
+     * Constructs a new DexData for this file.  The file is memory-mapped
+     * when it's loaded.
      */
     public DexData(RandomAccessFile raf) {
         mDexFile = raf;
+        createTables();
+    }
+
+    /**
+     * Constructs a new DexData for DEX data that's already in memory (or
+     * mapped), starting at the buffer's current position.  The buffer's
+     * contents are used in place, not copied.
+     */
+    public DexData(ByteBuffer buffer) {
+        mDexBuffer = buffer.slice();
+        createTables();
+    }
+
+    /**
+     * Constructs a new DexData that reads a DEX file from a stream, such as
+     * stdin.  The stream is only read forward, and only the tables being
+     * loaded are held in memory, never the whole file.  It's left just
+     * past the last part that was needed, not closed.
+     */
+    public DexData(InputStream in) {
+        mStream = in instanceof BufferedInputStream ? in : new BufferedInputStream(in);
+        mWindow = ByteBuffer.allocate(HEADER_SIZE);
+        createTables();
+    }
+
+    /**
+     * Sets whether the ID tables should be kept outside of the Java heap,
+     * which is worthwhile when very many DEX files are loaded.  This must be
+     * called before loading.
+     */
+    public void setOffHeap(boolean offHeap) {
+        if (offHeap != mOffHeap) {
+            mOffHeap = offHeap;
+            mStrings = new String[0];
+            createTables();
+        }
+    }
+
+    private void createTables() {
+        mStringOffsets = newTable();
+        mTypeDescriptorIdx = newTable();
+        mProtoShortyIdx = newTable();
+        mProtoReturnTypeIdx = newTable();
+        mProtoParametersOff = newTable();
+        mProtoTypesStart = newTable();
+        mTypeLists = newTable();
+        mFieldClassIdx = newTable();
+        mFieldTypeIdx = newTable();
+        mFieldNameIdx = newTable();
+        mMethodClassIdx = newTable();
+        mMethodProtoIdx = newTable();
+        mMethodNameIdx = newTable();
+        mClassDefClassIdx = newTable();
+        mClassDefDataOff = newTable();
+    }
+
+    private IntTable newTable() {
+        return mOffHeap ? IntTable.offHeap() : IntTable.onHeap();
+    }
+
+    /**
+     * Switches this DexData over to another DEX file in memory, keeping the
+     * tables allocated for the previous one so that they can be reused.
+     * Nothing from the previous file may be queried after this.
+     */
+    public void reset(ByteBuffer buffer) {
+        mDexFile = null;
+        mStream = null;
+        mDexBuffer = buffer.slice();
+        mBufferBase = 0;
+        mHeaderItem = null;
+        mMapItems = null;
+    }
+
+    /**
+     * Receives progress notifications while a DEX file is loaded, e.g. for
+     * profiling.
+     */
+    public interface LoadListener {
+        /**
+         * Called before a load step (such as "string_ids") starts.
+         */
+        void stepStarted(String step);
+
+        /**
+         * Called after a load step is done.
+         *
+         * @param itemCount the number of items read
+         * @param byteCount the extent of the file covered by the step
+         */
+        void stepFinished(String step, int itemCount, int byteCount);
+    }
+
+    /**
+     * Sets the listener to notify while loading, or null for none.
+     */
+    public void setLoadListener(LoadListener listener) {
+        mLoadListener = listener;
+    }
+
+    /**
+     * Sets the table to intern strings in, so that they can be shared with
+     * other DEX files, or null to keep them to this one.
+     */
+    public void setSymbolTable(SymbolTable symbols) {
+        mSymbols = symbols;
+        mMutf8.setSymbolTable(symbols);
+    }
+
+    /**
+     * The tables that can be requested from {@link #load(EnumSet)}.
+     *
+     * Type IDs are implied by every table other than the strings, since
+     * that's how they all get resolved to class names.  If STRINGS is not
+     * requested, only the strings used as type descriptors are decoded.
+     *
+     * CLASS_DATA covers the class_data_items of the class defs, along with
+     * the sizes of their code_items.  It implies CLASS_DEFS.
+     */
+    public enum Section {
+        STRINGS,
+        TYPE_IDS,
+        PROTO_IDS,
+        FIELD_IDS,
+        METHOD_IDS,
+        CLASS_DEFS,
+        CLASS_DATA
+    }
+
+    /**
+     * The individual reads performed while loading, declared in dependency
+     * order (a step may only rely on steps declared before it).
+     */
+    private enum LoadStep {
+        STRING_IDS,
+        TYPE_IDS,
+        PROTO_IDS,
+        FIELD_IDS,
+        METHOD_IDS,
+        CLASS_DEFS,
+        TYPE_LISTS,
+        STRING_DATA,
+        CLASS_DATA,
+        CODE_ITEMS;
+
+        /** The name that load listeners are given. */
+        final String stepName = name().toLowerCase();
     }
 
     /**
@@ -50,16 +258,266 @@ public class DexData {
      * @throws DexDataException if the DEX contents look bad
      */
     public void load() throws IOException {
+        load(EnumSet.allOf(Section.class));
+    }
+
+    /**
+     * Loads only the requested tables.  The results of the queries below
+     * that rely on a table that wasn't loaded are undefined.
+     *
+     * The reads are ordered by file offset (using the map_list to find the
+     * data sections that the header doesn't point to), so that we move
+     * through the file sequentially instead of seeking back and forth.
+     *
+     * A DexData reading from a stream can't load PROTO_IDS or CLASS_DATA,
+     * since they refer back to parts of the file that are already past.
+     *
+     * @throws IOException if we encounter a problem while reading
+     * @throws DexDataException if the DEX contents look bad
+     */
+    public void load(EnumSet<Section> sections) throws IOException {
+        if (mStream == null && mDexBuffer == null) {
+            mDexBuffer = mDexFile.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, 0, mDexFile.length());
+        }
+
+        try {
+            if (mStream != null) {
+                loadFromStream(sections);
+            } else {
+                loadSections(sections);
+            }
+        } catch (BufferUnderflowException bue) {
+            throw new EOFException("DEX file is truncated");
+        } catch (IllegalArgumentException iae) {
+            // Thrown by seek() for offsets past the end of the data.
+            throw new EOFException("DEX file is truncated");
+        } catch (IndexOutOfBoundsException ioobe) {
+            // Thrown by the absolute reads in the LEB128 and string decoders.
+            throw new EOFException("DEX file is truncated");
+        }
+    }
+
+    private void loadSections(EnumSet<Section> sections) throws IOException {
         parseHeaderItem();
+        loadMapList();
 
-        loadStrings();
-        loadTypeIds();
-        loadProtoIds();
-        loadFieldIds();
-        loadMethodIds();
-        loadClassDefs();
+        EnumSet<Section> needed = getNeededSections(sections);
+        boolean descriptorsOnly = !needed.contains(Section.STRINGS);
+        for (LoadStep step : planLoadSteps(needed)) {
+            if (mLoadListener == null) {
+                loadStep(step, descriptorsOnly);
+            } else {
+                String stepName = step.stepName;
+                mLoadListener.stepStarted(stepName);
+                mFirstSeek = -1;
+                int itemCount = loadStep(step, descriptorsOnly);
+                mLoadListener.stepFinished(stepName, itemCount,
+                        mFirstSeek < 0 ? 0 : mDexBuffer.position() - mFirstSeek);
+            }
+        }
 
-        markInternalClasses();
+        if (needed.contains(Section.CLASS_DEFS)) {
+            markInternalClasses();
+        }
+    }
+
+    /**
+     * Loads the requested tables from the stream.  The header and the ID
+     * tables are read into the window one at a time, and then the strings
+     * that are wanted, in the order they appear in the file.  Anything in
+     * between is skipped.
+     */
+    private void loadFromStream(EnumSet<Section> sections) throws IOException {
+        fillWindow(0, HEADER_SIZE);
+        parseHeaderItem();
+        // The map_list is at the end of the file, so we go without it; the
+        // string data then sorts after all the ID tables, which it follows.
+        mMapItems = new MapItem[0];
+
+        EnumSet<Section> needed = getNeededSections(sections);
+        if (needed.contains(Section.PROTO_IDS) || needed.contains(Section.CLASS_DATA)) {
+            System.err.println("Prototypes and class data can't be read from a stream");
+            throw new DexDataException();
+        }
+        boolean descriptorsOnly = !needed.contains(Section.STRINGS);
+        for (LoadStep step : planLoadSteps(needed)) {
+            String stepName = step.stepName;
+            if (mLoadListener != null) {
+                mLoadListener.stepStarted(stepName);
+            }
+            long start = mStreamPosition;
+            int itemCount;
+            if (step == LoadStep.STRING_DATA) {
+                itemCount = loadStringDataFromStream(descriptorsOnly);
+            } else {
+                fillWindow((int) stepOffset(step), getStepSize(step));
+                itemCount = loadStep(step, descriptorsOnly);
+            }
+            if (mLoadListener != null) {
+                mLoadListener.stepFinished(stepName, itemCount, (int) (mStreamPosition - start));
+            }
+        }
+
+        if (needed.contains(Section.CLASS_DEFS)) {
+            markInternalClasses();
+        }
+    }
+
+    /**
+     * Returns the number of bytes that an ID table load step reads.
+     */
+    private int getStepSize(LoadStep step) {
+        switch (step) {
+            case STRING_IDS:  return mHeaderItem.stringIdsSize * 4;
+            case TYPE_IDS:    return mHeaderItem.typeIdsSize * 4;
+            case FIELD_IDS:   return mHeaderItem.fieldIdsSize * 8;
+            case METHOD_IDS:  return mHeaderItem.methodIdsSize * 8;
+            case CLASS_DEFS:  return mHeaderItem.classDefsSize * 32;
+            default:
+                throw new AssertionError(step);
+        }
+    }
+
+    /**
+     * Adds the tables that the requested ones are resolved through.
+     */
+    private static EnumSet<Section> getNeededSections(EnumSet<Section> sections) {
+        EnumSet<Section> needed = EnumSet.copyOf(sections);
+        if (needed.contains(Section.CLASS_DATA)) {
+            needed.add(Section.CLASS_DEFS);
+        }
+        if (needed.contains(Section.PROTO_IDS) ||
+                needed.contains(Section.FIELD_IDS) ||
+                needed.contains(Section.METHOD_IDS) ||
+                needed.contains(Section.CLASS_DEFS)) {
+            needed.add(Section.TYPE_IDS);
+        }
+        return needed;
+    }
+
+    /**
+     * Performs a single load step.
+     *
+     * @return the number of items that were read
+     */
+    private int loadStep(LoadStep step, boolean descriptorsOnly) throws IOException {
+        switch (step) {
+            case STRING_IDS:  loadStringIds(); return mHeaderItem.stringIdsSize;
+            case TYPE_IDS:    loadTypeIds(); return mHeaderItem.typeIdsSize;
+            case PROTO_IDS:   loadProtoIds(); return mHeaderItem.protoIdsSize;
+            case FIELD_IDS:   loadFieldIds(); return mHeaderItem.fieldIdsSize;
+            case METHOD_IDS:  loadMethodIds(); return mHeaderItem.methodIdsSize;
+            case CLASS_DEFS:  loadClassDefs(); return mHeaderItem.classDefsSize;
+            case TYPE_LISTS:  loadProtoTypeLists(); return mHeaderItem.protoIdsSize;
+            case STRING_DATA: return loadStringData(descriptorsOnly);
+            case CLASS_DATA:  return loadClassData();
+            case CODE_ITEMS:  return loadCodeItemSizes();
+            default:
+                throw new AssertionError(step);
+        }
+    }
+
+    /**
+     * Works out which reads are needed for the given tables, and sorts them
+     * by the file offset they start at.
+     */
+    private LoadStep[] planLoadSteps(EnumSet<Section> sections) {
+        EnumSet<LoadStep> steps = EnumSet.noneOf(LoadStep.class);
+        if (sections.contains(Section.STRINGS) ||
+                sections.contains(Section.TYPE_IDS)) {
+            steps.add(LoadStep.STRING_IDS);
+            if (!mOffHeap || mStream != null) {
+                steps.add(LoadStep.STRING_DATA);
+            }
+        }
+        if (sections.contains(Section.TYPE_IDS)) {
+            steps.add(LoadStep.TYPE_IDS);
+        }
+        if (sections.contains(Section.PROTO_IDS)) {
+            steps.add(LoadStep.PROTO_IDS);
+            steps.add(LoadStep.TYPE_LISTS);
+        }
+        if (sections.contains(Section.FIELD_IDS)) {
+            steps.add(LoadStep.FIELD_IDS);
+        }
+        if (sections.contains(Section.METHOD_IDS)) {
+            steps.add(LoadStep.METHOD_IDS);
+        }
+        if (sections.contains(Section.CLASS_DEFS)) {
+            steps.add(LoadStep.CLASS_DEFS);
+        }
+        if (sections.contains(Section.CLASS_DATA)) {
+            steps.add(LoadStep.CLASS_DATA);
+            steps.add(LoadStep.CODE_ITEMS);
+        }
+
+        // Pack (offset, ordinal) into a long so that a plain sort gives us
+        // offset order, with ties broken by dependency order.
+        long[] keys = new long[steps.size()];
+        int idx = 0;
+        for (LoadStep step : steps) {
+            keys[idx++] = (stepOffset(step) << 8) | step.ordinal();
+        }
+        Arrays.sort(keys);
+
+        LoadStep[] allSteps = LoadStep.values();
+        LoadStep[] plan = new LoadStep[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            plan[i] = allSteps[(int) (keys[i] & 0xff)];
+        }
+        return plan;
+    }
+
+    /**
+     * Returns the offset at which a load step starts reading.  Steps that
+     * depend on an earlier table are never placed ahead of it.
+     */
+    private long stepOffset(LoadStep step) {
+        switch (step) {
+            case STRING_IDS:
+                return mHeaderItem.stringIdsOff & 0xffffffffL;
+            case TYPE_IDS:
+                return Math.max(mHeaderItem.typeIdsOff & 0xffffffffL,
+                        stepOffset(LoadStep.STRING_IDS));
+            case PROTO_IDS:
+                return mHeaderItem.protoIdsOff & 0xffffffffL;
+            case FIELD_IDS:
+                return mHeaderItem.fieldIdsOff & 0xffffffffL;
+            case METHOD_IDS:
+                return mHeaderItem.methodIdsOff & 0xffffffffL;
+            case CLASS_DEFS:
+                return mHeaderItem.classDefsOff & 0xffffffffL;
+            case TYPE_LISTS:
+                return Math.max(mapItemOffset(MapItem.TYPE_TYPE_LIST),
+                        stepOffset(LoadStep.PROTO_IDS));
+            case STRING_DATA:
+                return Math.max(mapItemOffset(MapItem.TYPE_STRING_DATA_ITEM),
+                        stepOffset(LoadStep.TYPE_IDS));
+            case CLASS_DATA:
+                return Math.max(mapItemOffset(MapItem.TYPE_CLASS_DATA_ITEM),
+                        stepOffset(LoadStep.CLASS_DEFS));
+            case CODE_ITEMS:
+                // The code items usually come first, but we only know which
+                // ones we want once the class data has been read.
+                return Math.max(mapItemOffset(MapItem.TYPE_CODE_ITEM),
+                        stepOffset(LoadStep.CLASS_DATA));
+            default:
+                throw new AssertionError(step);
+        }
+    }
+
+    /**
+     * Returns the offset of the given section according to the map_list,
+     * or the end of the file if the map doesn't mention it.
+     */
+    private long mapItemOffset(int type) {
+        for (MapItem item : mMapItems) {
+            if (item.type == type) {
+                return item.offset & 0xffffffffL;
+            }
+        }
+        return 0xffffffffL;
     }
 
     /**
@@ -76,6 +534,7 @@ public class DexData {
     void parseHeaderItem() throws IOException {
         mHeaderItem = new HeaderItem();
 
+        mDexBuffer.order(ByteOrder.LITTLE_ENDIAN);
         seek(0);
 
         byte[] magic = new byte[8];
@@ -96,7 +555,7 @@ public class DexData {
             /* do nothing */
         } else if (mHeaderItem.endianTag == HeaderItem.REVERSE_ENDIAN_CONSTANT){
             /* file is big-endian (!), reverse future reads */
-            isBigEndian = true;
+            mDexBuffer.order(ByteOrder.BIG_ENDIAN);
         } else {
             System.err.println("Endian constant has unexpected value " +
                 Integer.toHexString(mHeaderItem.endianTag));
@@ -109,7 +568,7 @@ public class DexData {
         /*mHeaderItem.endianTag =*/ readInt();
         /*mHeaderItem.linkSize =*/ readInt();
         /*mHeaderItem.linkOff =*/ readInt();
-        /*mHeaderItem.mapOff =*/ readInt();
+        mHeaderItem.mapOff = readInt();
         mHeaderItem.stringIdsSize = readInt();
         mHeaderItem.stringIdsOff = readInt();
         mHeaderItem.typeIdsSize = readInt();
@@ -127,31 +586,124 @@ public class DexData {
     }
 
     /**
-     * Loads the string table out of the DEX.
-     *
-     * First we read all of the string_id_items, then we read all of the
-     * string_data_item.  Doing it this way should allow us to avoid
-     * seeking around in the file.
+     * Loads the map_list, which describes where every section of the file
+     * lives (including the data sections that the header doesn't cover).
+     */
+    void loadMapList() throws IOException {
+        if (mHeaderItem.mapOff == 0) {
+            mMapItems = new MapItem[0];
+            return;
+        }
+
+        seek(mHeaderItem.mapOff);
+        int count = readInt();
+        mMapItems = new MapItem[count];
+        for (int i = 0; i < count; i++) {
+            mMapItems[i] = new MapItem();
+            mMapItems[i].type = readShort() & 0xffff;
+            /* unused = */ readShort();
+            mMapItems[i].size = readInt();
+            mMapItems[i].offset = readInt();
+        }
+    }
+
+    /**
+     * Loads the string_id_items.  The string data itself is read later on
+     * by loadStringData(), since it lives at the other end of the file.
      */
-    void loadStrings() throws IOException {
+    void loadStringIds() throws IOException {
         int count = mHeaderItem.stringIdsSize;
-        int stringOffsets[] = new int[count];
+        mStringOffsets.ensureCapacity(count);
 
         //System.out.println("reading " + count + " strings");
 
         seek(mHeaderItem.stringIdsOff);
         for (int i = 0; i < count; i++) {
-            stringOffsets[i] = readInt();
+            mStringOffsets.set(i, readInt());
         }
+    }
 
-        mStrings = new String[count];
+    /**
+     * Loads the string_data_items.
+     *
+     * The string data is laid out in string_id order, so reading it by
+     * index lets us avoid seeking backwards in the file.  If we only need
+     * the type descriptors, we skip over everything else.
+     */
+    int loadStringData(boolean descriptorsOnly) throws IOException {
+        int count = mHeaderItem.stringIdsSize;
+        boolean[] wanted = prepareStrings(descriptorsOnly);
 
-        seek(stringOffsets[0]);
+        int decoded = 0;
         for (int i = 0; i < count; i++) {
-            seek(stringOffsets[i]);         // should be a no-op
+            if (wanted != null && !wanted[i]) {
+                continue;
+            }
+            seek(mStringOffsets.get(i));         // usually a no-op
             mStrings[i] = readString();
+            decoded++;
             //System.out.println("STR: " + i + ": " + mStrings[i]);
         }
+        return decoded;
+    }
+
+    /**
+     * Loads the string_data_items from the stream.  They're normally in
+     * string_id order as well, but we sort them by offset to be sure, since
+     * there's no going back.
+     */
+    private int loadStringDataFromStream(boolean descriptorsOnly) throws IOException {
+        int count = mHeaderItem.stringIdsSize;
+        boolean[] wanted = prepareStrings(descriptorsOnly);
+
+        if (mSortKeys.length < count) {
+            mSortKeys = new long[count];
+        }
+        int decoded = 0;
+        for (int i = 0; i < count; i++) {
+            if (wanted == null || wanted[i]) {
+                mSortKeys[decoded++] = ((mStringOffsets.get(i) & 0xffffffffL) << 32) | i;
+            }
+        }
+        Arrays.sort(mSortKeys, 0, decoded);
+
+        for (int i = 0; i < decoded; i++) {
+            int idx = (int) mSortKeys[i];
+            fillStringWindow(mStringOffsets.get(idx));
+            seek(mStringOffsets.get(idx));
+            mStrings[idx] = readString();
+        }
+        return decoded;
+    }
+
+    /**
+     * Clears out the previous file's strings, and works out which strings
+     * are wanted.
+     *
+     * @return flags for the wanted strings, or null if all of them are
+     */
+    private boolean[] prepareStrings(boolean descriptorsOnly) {
+        int count = mHeaderItem.stringIdsSize;
+        if (mStrings.length < count) {
+            mStrings = new String[count];
+        } else {
+            // Don't hang on to the previous file's strings.
+            Arrays.fill(mStrings, 0, count, null);
+        }
+
+        boolean[] wanted = null;
+        if (descriptorsOnly) {
+            if (mWantedStrings.length < count) {
+                mWantedStrings = new boolean[count];
+            } else {
+                Arrays.fill(mWantedStrings, 0, count, false);
+            }
+            wanted = mWantedStrings;
+            for (int i = 0; i < mHeaderItem.typeIdsSize; i++) {
+                wanted[mTypeDescriptorIdx.get(i)] = true;
+            }
+        }
+        return wanted;
     }
 
     /**
@@ -159,60 +711,80 @@ public class DexData {
      */
     void loadTypeIds() throws IOException {
         int count = mHeaderItem.typeIdsSize;
-        mTypeIds = new TypeIdItem[count];
+        mTypeDescriptorIdx.ensureCapacity(count);
+        if (mTypeInternal.length < count) {
+            mTypeInternal = new boolean[count];
+        } else {
+            Arrays.fill(mTypeInternal, 0, count, false);
+        }
 
         //System.out.println("reading " + count + " typeIds");
         seek(mHeaderItem.typeIdsOff);
         for (int i = 0; i < count; i++) {
-            mTypeIds[i] = new TypeIdItem();
-            mTypeIds[i].descriptorIdx = readInt();
+            mTypeDescriptorIdx.set(i, readInt());
 
-            //System.out.println(i + ": " + mTypeIds[i].descriptorIdx +
-            //    " " + mStrings[mTypeIds[i].descriptorIdx]);
+            //System.out.println(i + ": " + mTypeDescriptorIdx.get(i) +
+            //    " " + mStrings[mTypeDescriptorIdx.get(i)]);
         }
     }
 
     /**
-     * Loads the proto ID list.
+     * Loads the proto ID list.  The parameter type lists are read
+     * separately by loadProtoTypeLists().
      */
     void loadProtoIds() throws IOException {
         int count = mHeaderItem.protoIdsSize;
-        mProtoIds = new ProtoIdItem[count];
+        mProtoShortyIdx.ensureCapacity(count);
+        mProtoReturnTypeIdx.ensureCapacity(count);
+        mProtoParametersOff.ensureCapacity(count);
 
         //System.out.println("reading " + count + " protoIds");
         seek(mHeaderItem.protoIdsOff);
 
-        /*
-         * Read the proto ID items.
-         */
         for (int i = 0; i < count; i++) {
-            mProtoIds[i] = new ProtoIdItem();
-            mProtoIds[i].shortyIdx = readInt();
-            mProtoIds[i].returnTypeIdx = readInt();
-            mProtoIds[i].parametersOff = readInt();
+            mProtoShortyIdx.set(i, readInt());
+            mProtoReturnTypeIdx.set(i, readInt());
+            mProtoParametersOff.set(i, readInt());
 
-            //System.out.println(i + ": " + mProtoIds[i].shortyIdx +
-            //    " " + mStrings[mProtoIds[i].shortyIdx]);
+            //System.out.println(i + ": " + mProtoShortyIdx.get(i) +
+            //    " " + mStrings[mProtoShortyIdx.get(i)]);
         }
+    }
 
-        /*
-         * Go back through and read the type lists.
-         */
+    /**
+     * Loads the type lists referenced by the proto IDs, in file order.
+     * They're all stored in mTypeLists, each as its size followed by its
+     * type indices.
+     */
+    void loadProtoTypeLists() throws IOException {
+        int count = mHeaderItem.protoIdsSize;
+        mProtoTypesStart.ensureCapacity(count);
+
+        // Sort by (offset, index) so we only ever move forward.
+        mSortKeys = ensureCapacity(mSortKeys, count);
+        long[] order = mSortKeys;
         for (int i = 0; i < count; i++) {
-            ProtoIdItem protoId = mProtoIds[i];
+            order[i] = ((mProtoParametersOff.get(i) & 0xffffffffL) << 32) | i;
+        }
+        Arrays.sort(order, 0, count);
 
-            int offset = protoId.parametersOff;
+        int used = 1;
+        mTypeLists.ensureCapacity(1);
+        mTypeLists.set(0, 0);                  // the empty list
+        for (int i = 0; i < count; i++) {
+            int protoIdx = (int) order[i];
+            int offset = mProtoParametersOff.get(protoIdx);
 
             if (offset == 0) {
-                protoId.types = new int[0];
-                continue;
+                mProtoTypesStart.set(protoIdx, 0);
             } else {
                 seek(offset);
                 int size = readInt();       // #of entries in list
-                protoId.types = new int[size];
-
+                mTypeLists.ensureCapacity(used + 1 + size);
+                mProtoTypesStart.set(protoIdx, used);
+                mTypeLists.set(used++, size);
                 for (int j = 0; j < size; j++) {
-                    protoId.types[j] = readShort() & 0xffff;
+                    mTypeLists.set(used++, readShort() & 0xffff);
                 }
             }
         }
@@ -223,18 +795,19 @@ public class DexData {
      */
     void loadFieldIds() throws IOException {
         int count = mHeaderItem.fieldIdsSize;
-        mFieldIds = new FieldIdItem[count];
+        mFieldClassIdx.ensureCapacity(count);
+        mFieldTypeIdx.ensureCapacity(count);
+        mFieldNameIdx.ensureCapacity(count);
 
         //System.out.println("reading " + count + " fieldIds");
         seek(mHeaderItem.fieldIdsOff);
         for (int i = 0; i < count; i++) {
-            mFieldIds[i] = new FieldIdItem();
-            mFieldIds[i].classIdx = readShort() & 0xffff;
-            mFieldIds[i].typeIdx = readShort() & 0xffff;
-            mFieldIds[i].nameIdx = readInt();
+            mFieldClassIdx.set(i, readShort() & 0xffff);
+            mFieldTypeIdx.set(i, readShort() & 0xffff);
+            mFieldNameIdx.set(i, readInt());
 
-            //System.out.println(i + ": " + mFieldIds[i].nameIdx +
-            //    " " + mStrings[mFieldIds[i].nameIdx]);
+            //System.out.println(i + ": " + mFieldNameIdx.get(i) +
+            //    " " + mStrings[mFieldNameIdx.get(i)]);
         }
     }
 
@@ -243,18 +816,19 @@ public class DexData {
      */
     void loadMethodIds() throws IOException {
         int count = mHeaderItem.methodIdsSize;
-        mMethodIds = new MethodIdItem[count];
+        mMethodClassIdx.ensureCapacity(count);
+        mMethodProtoIdx.ensureCapacity(count);
+        mMethodNameIdx.ensureCapacity(count);
 
         //System.out.println("reading " + count + " methodIds");
         seek(mHeaderItem.methodIdsOff);
         for (int i = 0; i < count; i++) {
-            mMethodIds[i] = new MethodIdItem();
-            mMethodIds[i].classIdx = readShort() & 0xffff;
-            mMethodIds[i].protoIdx = readShort() & 0xffff;
-            mMethodIds[i].nameIdx = readInt();
+            mMethodClassIdx.set(i, readShort() & 0xffff);
+            mMethodProtoIdx.set(i, readShort() & 0xffff);
+            mMethodNameIdx.set(i, readInt());
 
-            //System.out.println(i + ": " + mMethodIds[i].nameIdx +
-            //    " " + mStrings[mMethodIds[i].nameIdx]);
+            //System.out.println(i + ": " + mMethodNameIdx.get(i) +
+            //    " " + mStrings[mMethodNameIdx.get(i)]);
         }
     }
 
@@ -263,25 +837,110 @@ public class DexData {
      */
     void loadClassDefs() throws IOException {
         int count = mHeaderItem.classDefsSize;
-        mClassDefs = new ClassDefItem[count];
+        mClassDefClassIdx.ensureCapacity(count);
+        mClassDefDataOff.ensureCapacity(count);
+        mClassDefMethods = ensureCapacity(mClassDefMethods, count);
+        mClassDefCodeSize = ensureCapacity(mClassDefCodeSize, count);
+        Arrays.fill(mClassDefMethods, 0, count, 0);
+        Arrays.fill(mClassDefCodeSize, 0, count, 0);
 
         //System.out.println("reading " + count + " classDefs");
         seek(mHeaderItem.classDefsOff);
         for (int i = 0; i < count; i++) {
-            mClassDefs[i] = new ClassDefItem();
-            mClassDefs[i].classIdx = readInt();
+            mClassDefClassIdx.set(i, readInt());
 
             /* access_flags = */ readInt();
             /* superclass_idx = */ readInt();
             /* interfaces_off = */ readInt();
             /* source_file_idx = */ readInt();
             /* annotations_off = */ readInt();
-            /* class_data_off = */ readInt();
+            mClassDefDataOff.set(i, readInt());
             /* static_values_off = */ readInt();
 
-            //System.out.println(i + ": " + mClassDefs[i].classIdx + " " +
-            //    mStrings[mTypeIds[mClassDefs[i].classIdx].descriptorIdx]);
+            //System.out.println(i + ": " + mClassDefClassIdx.get(i) + " " +
+            //    mStrings[mTypeDescriptorIdx.get(mClassDefClassIdx.get(i))]);
+        }
+    }
+
+    /**
+     * Walks the class_data_items, counting the methods each class defines
+     * and remembering where their code_items are.
+     *
+     * The items are visited in file order.  Only the code offsets are kept,
+     * as packed (offset, class def) pairs, so that loadCodeItemSizes() can
+     * visit the code items in file order too.
+     *
+     * @return the number of class_data_items
+     */
+    int loadClassData() throws IOException {
+        int count = mHeaderItem.classDefsSize;
+
+        mSortKeys = ensureCapacity(mSortKeys, count);
+        long[] order = mSortKeys;
+        int classDataCount = 0;
+        for (int i = 0; i < count; i++) {
+            if (mClassDefDataOff.get(i) != 0) {
+                order[classDataCount++] =
+                    ((mClassDefDataOff.get(i) & 0xffffffffL) << 32) | i;
+            }
         }
+        Arrays.sort(order, 0, classDataCount);
+
+        long[] codeItems = mCodeItems;
+        int codeItemCount = 0;
+        for (int i = 0; i < classDataCount; i++) {
+            int classDefIdx = (int) order[i];
+            seek((int) (order[i] >>> 32));
+
+            int staticFieldsSize = readUnsignedLeb128();
+            int instanceFieldsSize = readUnsignedLeb128();
+            int directMethodsSize = readUnsignedLeb128();
+            int virtualMethodsSize = readUnsignedLeb128();
+
+            for (int j = 0; j < staticFieldsSize + instanceFieldsSize; j++) {
+                /* field_idx_diff = */ readUnsignedLeb128();
+                /* access_flags = */ readUnsignedLeb128();
+            }
+
+            int methodsSize = directMethodsSize + virtualMethodsSize;
+            mClassDefMethods[classDefIdx] = methodsSize;
+            for (int j = 0; j < methodsSize; j++) {
+                /* method_idx_diff = */ readUnsignedLeb128();
+                /* access_flags = */ readUnsignedLeb128();
+                int codeOff = readUnsignedLeb128();
+                if (codeOff != 0) {
+                    if (codeItemCount == codeItems.length) {
+                        codeItems = Arrays.copyOf(codeItems, codeItemCount * 2);
+                    }
+                    codeItems[codeItemCount++] =
+                        ((codeOff & 0xffffffffL) << 32) | classDefIdx;
+                }
+            }
+        }
+
+        mCodeItems = codeItems;
+        mCodeItemCount = codeItemCount;
+        return classDataCount;
+    }
+
+    /**
+     * Reads the insns_size of each code_item found by loadClassData(), and
+     * adds the bytecode size to its class.
+     *
+     * @return the number of code_items
+     */
+    int loadCodeItemSizes() throws IOException {
+        int count = mCodeItemCount;
+        Arrays.sort(mCodeItems, 0, count);
+        for (int i = 0; i < count; i++) {
+            int codeOff = (int) (mCodeItems[i] >>> 32);
+            // registers_size, ins_size, outs_size, tries_size, debug_info_off
+            seek(codeOff + 2 + 2 + 2 + 2 + 4);
+            int insnsSize = readInt();
+            mClassDefCodeSize[(int) mCodeItems[i]] += (insnsSize & 0xffffffffL) * 2;
+        }
+        mCodeItemCount = 0;
+        return count;
     }
 
     /**
@@ -289,23 +948,23 @@ public class DexData {
      * DEX file or within the VM (e.g. primitive classes and arrays).
      */
     void markInternalClasses() {
-        for (int i = mClassDefs.length -1; i >= 0; i--) {
-            mTypeIds[mClassDefs[i].classIdx].internal = true;
+        for (int i = mHeaderItem.classDefsSize -1; i >= 0; i--) {
+            mTypeInternal[mClassDefClassIdx.get(i)] = true;
         }
 
-        for (int i = 0; i < mTypeIds.length; i++) {
-            String className = mStrings[mTypeIds[i].descriptorIdx];
+        for (int i = 0; i < mHeaderItem.typeIdsSize; i++) {
+            String className = getString(mTypeDescriptorIdx.get(i));
 
             if (className.length() == 1) {
                 // primitive class
-                mTypeIds[i].internal = true;
+                mTypeInternal[i] = true;
             } else if (className.charAt(0) == '[') {
-                mTypeIds[i].internal = true;
+                mTypeInternal[i] = true;
             }
 
             //System.out.println(i + " " +
-            //    (mTypeIds[i].internal ? "INTERNAL" : "external") + " - " +
-            //    mStrings[mTypeIds[i].descriptorIdx]);
+            //    (mTypeInternal[i] ? "INTERNAL" : "external") + " - " +
+            //    mStrings[mTypeDescriptorIdx.get(i)]);
         }
     }
 
@@ -316,11 +975,66 @@ public class DexData {
      * =======================================================================
      */
 
+    /*
+     * Once loading is done, the lookups below are plain reads of the
+     * tables, or (for strings with setOffHeap()) of the DEX data at fixed
+     * offsets, which don't depend on any read position, so they can be made
+     * from several threads at once.
+     */
+
+    /**
+     * Returns a string, given an index into the string_ids table.
+     */
+    private String getString(int idx) {
+        if (!mOffHeap || mStream != null) {
+            return mStrings[idx];
+        }
+        // A view of our own, so that the shared buffer's position is left
+        // alone.
+        ByteBuffer buf = mDexBuffer.duplicate();
+        Mutf8 mutf8 = mQueryMutf8.get();
+        mutf8.setSymbolTable(mSymbols);
+        try {
+            buf.position(mStringOffsets.get(idx));
+            int utf16len = readUnsignedLeb128(buf);
+            return mutf8.decode(buf, utf16len);
+        } catch (IOException ioe) {
+            System.err.println("Bad string " + idx + ": " + ioe.getMessage());
+            throw new DexDataException();
+        } catch (BufferUnderflowException bue) {
+            // As load() reports for strings that are decoded up front.
+            System.err.println("Bad string " + idx + ": DEX file is truncated");
+            throw new DexDataException();
+        } catch (IllegalArgumentException iae) {
+            // Thrown by position() for offsets past the end of the data.
+            System.err.println("Bad string " + idx + ": DEX file is truncated");
+            throw new DexDataException();
+        } catch (IndexOutOfBoundsException ioobe) {
+            // Thrown by the absolute reads in readUnsignedLeb128().
+            System.err.println("Bad string " + idx + ": DEX file is truncated");
+            throw new DexDataException();
+        }
+    }
+
+    private static final long FINGERPRINT_BASIS = 0xcbf29ce484222325L;
+    private static final long FINGERPRINT_PRIME = 0x100000001b3L;
+
+    /**
+     * Adds a string to a 64-bit FNV-1a hash, followed by a separator that
+     * can't appear in it.
+     */
+    private static long fingerprint(long h, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            h = (h ^ s.charAt(i)) * FINGERPRINT_PRIME;
+        }
+        return (h ^ 0xffff) * FINGERPRINT_PRIME;
+    }
+
     /**
      * Returns the class name, given an index into the type_ids table.
      */
     private String classNameFromTypeIndex(int idx) {
-        return mStrings[mTypeIds[idx].descriptorIdx];
+        return getString(mTypeDescriptorIdx.get(idx));
     }
 
     /**
@@ -328,11 +1042,11 @@ public class DexData {
      * into the proto_ids table.
      */
     private String[] argArrayFromProtoIndex(int idx) {
-        ProtoIdItem protoId = mProtoIds[idx];
-        String[] result = new String[protoId.types.length];
+        int start = mProtoTypesStart.get(idx);
+        String[] result = new String[mTypeLists.get(start)];
 
-        for (int i = 0; i < protoId.types.length; i++) {
-            result[i] = mStrings[mTypeIds[protoId.types[i]].descriptorIdx];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = classNameFromTypeIndex(mTypeLists.get(start + 1 + i));
         }
 
         return result;
@@ -343,8 +1057,7 @@ public class DexData {
      * index into the proto_ids table.
      */
     private String returnTypeFromProtoIndex(int idx) {
-        ProtoIdItem protoId = mProtoIds[idx];
-        return mStrings[mTypeIds[protoId.returnTypeIdx].descriptorIdx];
+        return classNameFromTypeIndex(mProtoReturnTypeIdx.get(idx));
     }
 
     /**
@@ -355,14 +1068,15 @@ public class DexData {
      */
     public ClassRef[] getExternalReferences() {
         // create a sparse array of ClassRef that parallels mTypeIds
-        ClassRef[] sparseRefs = new ClassRef[mTypeIds.length];
+        int typeIdCount = mHeaderItem.typeIdsSize;
+        ClassRef[] sparseRefs = new ClassRef[typeIdCount];
 
         // create entries for all externally-referenced classes
         int count = 0;
-        for (int i = 0; i < mTypeIds.length; i++) {
-            if (!mTypeIds[i].internal) {
+        for (int i = 0; i < typeIdCount; i++) {
+            if (!mTypeInternal[i]) {
                 sparseRefs[i] =
-                    new ClassRef(mStrings[mTypeIds[i].descriptorIdx]);
+                    new ClassRef(classNameFromTypeIndex(i));
                 count++;
             }
         }
@@ -374,7 +1088,7 @@ public class DexData {
         // crunch out the sparseness
         ClassRef[] classRefs = new ClassRef[count];
         int idx = 0;
-        for (int i = 0; i < mTypeIds.length; i++) {
+        for (int i = 0; i < typeIdCount; i++) {
             if (sparseRefs[i] != null)
                 classRefs[idx++] = sparseRefs[i];
         }
@@ -389,14 +1103,13 @@ public class DexData {
      * references into the appropriate ClassRef.
      */
     private void addExternalFieldReferences(ClassRef[] sparseRefs) {
-        for (int i = 0; i < mFieldIds.length; i++) {
-            if (!mTypeIds[mFieldIds[i].classIdx].internal) {
-                FieldIdItem fieldId = mFieldIds[i];
+        for (int i = 0; i < mHeaderItem.fieldIdsSize; i++) {
+            if (!mTypeInternal[mFieldClassIdx.get(i)]) {
                 FieldRef newFieldRef = new FieldRef(
-                        classNameFromTypeIndex(fieldId.classIdx),
-                        classNameFromTypeIndex(fieldId.typeIdx),
-                        mStrings[fieldId.nameIdx]);
-                sparseRefs[mFieldIds[i].classIdx].addField(newFieldRef);
+                        classNameFromTypeIndex(mFieldClassIdx.get(i)),
+                        classNameFromTypeIndex(mFieldTypeIdx.get(i)),
+                        getString(mFieldNameIdx.get(i)));
+                sparseRefs[mFieldClassIdx.get(i)].addField(newFieldRef);
             }
         }
     }
@@ -406,31 +1119,218 @@ public class DexData {
      * references into the appropriate ClassRef.
      */
     private void addExternalMethodReferences(ClassRef[] sparseRefs) {
-        for (int i = 0; i < mMethodIds.length; i++) {
-            if (!mTypeIds[mMethodIds[i].classIdx].internal) {
-                MethodIdItem methodId = mMethodIds[i];
+        for (int i = 0; i < mHeaderItem.methodIdsSize; i++) {
+            if (!mTypeInternal[mMethodClassIdx.get(i)]) {
                 MethodRef newMethodRef = new MethodRef(
-                        classNameFromTypeIndex(methodId.classIdx),
-                        argArrayFromProtoIndex(methodId.protoIdx),
-                        returnTypeFromProtoIndex(methodId.protoIdx),
-                        mStrings[methodId.nameIdx]);
-                sparseRefs[mMethodIds[i].classIdx].addMethod(newMethodRef);
+                        classNameFromTypeIndex(mMethodClassIdx.get(i)),
+                        argArrayFromProtoIndex(mMethodProtoIdx.get(i)),
+                        returnTypeFromProtoIndex(mMethodProtoIdx.get(i)),
+                        getString(mMethodNameIdx.get(i)));
+                sparseRefs[mMethodClassIdx.get(i)].addMethod(newMethodRef);
             }
         }
     }
 
+    /**
+     * Returns the number of entries in the type_ids table.
+     */
+    public int getTypeIdCount() {
+        return mHeaderItem.typeIdsSize;
+    }
+
+    /**
+     * Returns the descriptor of a type, given an index into the type_ids
+     * table.
+     */
+    public String getTypeName(int idx) {
+        return classNameFromTypeIndex(idx);
+    }
+
+    /**
+     * Returns the size of the file, according to its header.
+     */
+    public int getFileSize() {
+        return mHeaderItem.fileSize;
+    }
+
+    /**
+     * Returns the number of entries in the method_ids table.  This comes
+     * from the header, so the table itself needn't be loaded.
+     */
+    public int getMethodIdCount() {
+        return mHeaderItem.methodIdsSize;
+    }
+
+    /**
+     * Returns the declaring class of a method, given an index into the
+     * method_ids table.  Unlike getMethodRefs(), this doesn't need the
+     * proto IDs to be loaded.
+     */
+    public String getMethodDeclClassName(int idx) {
+        return classNameFromTypeIndex(mMethodClassIdx.get(idx));
+    }
+
+    /**
+     * Returns the type index of a method's declaring class, given an index
+     * into the method_ids table.
+     */
+    public int getMethodDeclClassIndex(int idx) {
+        return mMethodClassIdx.get(idx);
+    }
+
+    /**
+     * Returns a 64-bit hash of a method's declaring class, name and
+     * prototype, given an index into the method_ids table.  The same method
+     * has the same fingerprint in every DEX file.  Requires the strings and
+     * proto IDs to be loaded.
+     */
+    public long getMethodFingerprint(int idx) {
+        long h = FINGERPRINT_BASIS;
+        h = fingerprint(h, classNameFromTypeIndex(mMethodClassIdx.get(idx)));
+        h = fingerprint(h, getString(mMethodNameIdx.get(idx)));
+        int protoIdx = mMethodProtoIdx.get(idx);
+        h = fingerprint(h, returnTypeFromProtoIndex(protoIdx));
+        int start = mProtoTypesStart.get(protoIdx);
+        int count = mTypeLists.get(start);
+        for (int i = 0; i < count; i++) {
+            h = fingerprint(h, classNameFromTypeIndex(mTypeLists.get(start + 1 + i)));
+        }
+        return h;
+    }
+
+    /**
+     * Returns true if the method's declaring class isn't defined in this
+     * DEX file.  Requires the class defs to be loaded.
+     */
+    public boolean isMethodExternal(int idx) {
+        return !mTypeInternal[mMethodClassIdx.get(idx)];
+    }
+
+    /**
+     * Returns the number of entries in the field_ids table.  This comes
+     * from the header, so the table itself needn't be loaded.
+     */
+    public int getFieldIdCount() {
+        return mHeaderItem.fieldIdsSize;
+    }
+
+    /**
+     * Returns the declaring class of a field, given an index into the
+     * field_ids table.
+     */
+    public String getFieldDeclClassName(int idx) {
+        return classNameFromTypeIndex(mFieldClassIdx.get(idx));
+    }
+
+    /**
+     * Returns the type index of a field's declaring class, given an index
+     * into the field_ids table.
+     */
+    public int getFieldDeclClassIndex(int idx) {
+        return mFieldClassIdx.get(idx);
+    }
+
+    /**
+     * Returns a 64-bit hash of a field's declaring class, name and type,
+     * given an index into the field_ids table.  Requires the strings to be
+     * loaded.
+     */
+    public long getFieldFingerprint(int idx) {
+        long h = FINGERPRINT_BASIS;
+        h = fingerprint(h, classNameFromTypeIndex(mFieldClassIdx.get(idx)));
+        h = fingerprint(h, getString(mFieldNameIdx.get(idx)));
+        return fingerprint(h, classNameFromTypeIndex(mFieldTypeIdx.get(idx)));
+    }
+
+    /**
+     * Returns true if the field's declaring class isn't defined in this
+     * DEX file.  Requires the class defs to be loaded.
+     */
+    public boolean isFieldExternal(int idx) {
+        return !mTypeInternal[mFieldClassIdx.get(idx)];
+    }
+
+    /**
+     * Returns the number of classes referenced but not defined by this
+     * DEX file.  Requires the class defs to be loaded.
+     */
+    public int getExternalClassCount() {
+        int count = 0;
+        for (int i = 0; i < mHeaderItem.typeIdsSize; i++) {
+            if (!mTypeInternal[i]) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of entries in the class_defs table.
+     */
+    public int getClassDefCount() {
+        return mHeaderItem.classDefsSize;
+    }
+
+    /**
+     * Returns the name of a class defined in this DEX file, given an index
+     * into the class_defs table.
+     */
+    public String getClassDefName(int idx) {
+        return classNameFromTypeIndex(mClassDefClassIdx.get(idx));
+    }
+
+    /**
+     * Returns the type index of a class defined in this DEX file, given an
+     * index into the class_defs table.
+     */
+    public int getClassDefClassIndex(int idx) {
+        return mClassDefClassIdx.get(idx);
+    }
+
+    /**
+     * Returns the file offset of a class's class_data_item, or 0 if it
+     * has none.
+     */
+    int getClassDefDataOffset(int idx) {
+        return mClassDefDataOff.get(idx);
+    }
+
+    /**
+     * Returns a new scanner for the bytecode of the classes defined in this
+     * DEX file.  Requires the class defs to be loaded.  Each thread that
+     * scans should use its own.
+     */
+    public CodeScanner newCodeScanner() {
+        return new CodeScanner(this, mDexBuffer);
+    }
+
+    /**
+     * Returns the number of methods (direct and virtual) that a class
+     * defines.  Requires the class data to be loaded.
+     */
+    public int getClassDefMethodCount(int idx) {
+        return mClassDefMethods[idx];
+    }
+
+    /**
+     * Returns the total size in bytes of the bytecode of a class's methods.
+     * Requires the class data to be loaded.
+     */
+    public long getClassDefCodeSize(int idx) {
+        return mClassDefCodeSize[idx];
+    }
+
     /**
      * Returns the list of all method references.
      */
     public MethodRef[] getMethodRefs() {
-        MethodRef[] methodRefs = new MethodRef[mMethodIds.length];
-        for (int i = 0; i < mMethodIds.length; i++) {
-            MethodIdItem methodId = mMethodIds[i];
+        MethodRef[] methodRefs = new MethodRef[mHeaderItem.methodIdsSize];
+        for (int i = 0; i < methodRefs.length; i++) {
             methodRefs[i] = new MethodRef(
-                    classNameFromTypeIndex(methodId.classIdx),
-                    argArrayFromProtoIndex(methodId.protoIdx),
-                    returnTypeFromProtoIndex(methodId.protoIdx),
-                    mStrings[methodId.nameIdx]);
+                    classNameFromTypeIndex(mMethodClassIdx.get(i)),
+                    argArrayFromProtoIndex(mMethodProtoIdx.get(i)),
+                    returnTypeFromProtoIndex(mMethodProtoIdx.get(i)),
+                    getString(mMethodNameIdx.get(i)));
         }
         return methodRefs;
     }
@@ -439,17 +1339,28 @@ public class DexData {
      * Returns the list of all field references.
      */
     public FieldRef[] getFieldRefs() {
-        FieldRef[] fieldRefs = new FieldRef[mFieldIds.length];
-        for (int i = 0; i < mFieldIds.length; i++) {
-            FieldIdItem fieldId = mFieldIds[i];
+        FieldRef[] fieldRefs = new FieldRef[mHeaderItem.fieldIdsSize];
+        for (int i = 0; i < fieldRefs.length; i++) {
             fieldRefs[i] = new FieldRef(
-                    classNameFromTypeIndex(fieldId.classIdx),
-                    classNameFromTypeIndex(fieldId.typeIdx),
-                    mStrings[fieldId.nameIdx]);
+                    classNameFromTypeIndex(mFieldClassIdx.get(i)),
+                    classNameFromTypeIndex(mFieldTypeIdx.get(i)),
+                    getString(mFieldNameIdx.get(i)));
         }
         return fieldRefs;
     }
 
+    /**
+     * Returns the array if it can hold count entries, or a larger one
+     * (whose contents are undefined) if not.
+     */
+    private static int[] ensureCapacity(int[] array, int count) {
+        return array.length >= count ? array : new int[Math.max(count, array.length * 3 / 2)];
+    }
+
+    private static long[] ensureCapacity(long[] array, int count) {
+        return array.length >= count ? array : new long[Math.max(count, array.length * 3 / 2)];
+    }
+
     /*
      * =======================================================================
      *      Basic I/O functions
@@ -460,49 +1371,126 @@ public class DexData {
      * Seeks the DEX file to the specified absolute position.
      */
     void seek(int position) throws IOException {
-        mDexFile.seek(position);
+        if (mFirstSeek < 0) {
+            mFirstSeek = position;
+        }
+        mDexBuffer.position(position - mBufferBase);
+    }
+
+    /**
+     * Reads part of the file from the stream into the window, skipping
+     * anything before it.
+     *
+     * @throws DexDataException if that part was already passed
+     */
+    private void fillWindow(int offset, int length) throws IOException {
+        skipTo(offset);
+        ensureWindow(length);
+        int count = 0;
+        while (count < length) {
+            int actual = mStream.read(mWindow.array(), count, length - count);
+            if (actual < 0) {
+                throw new EOFException("DEX file is truncated");
+            }
+            count += actual;
+        }
+        mWindow.limit(length);
+        mStreamPosition += length;
+        mDexBuffer = mWindow;
+        mBufferBase = offset;
+    }
+
+    /**
+     * Reads a string_data_item from the stream into the window: its ULEB128
+     * length, and its bytes up to the terminating NUL.
+     */
+    private void fillStringWindow(int offset) throws IOException {
+        skipTo(offset);
+        ensureWindow(0);
+        int length = 0;
+        boolean inLength = true;
+        while (true) {
+            int b = mStream.read();
+            if (b < 0) {
+                throw new EOFException("DEX file is truncated");
+            }
+            if (length == mWindow.capacity()) {
+                ByteBuffer grown = ByteBuffer.allocate(length * 2).order(mWindow.order());
+                grown.put(mWindow.array(), 0, length);
+                mWindow = grown;
+            }
+            mWindow.array()[length++] = (byte) b;
+            if (inLength) {
+                inLength = (b & 0x80) != 0;
+            } else if (b == 0) {
+                break;
+            }
+        }
+        mWindow.clear();
+        mWindow.limit(length);
+        mStreamPosition += length;
+        mDexBuffer = mWindow;
+        mBufferBase = offset;
+    }
+
+    private void skipTo(int offset) throws IOException {
+        long skip = (offset & 0xffffffffL) - mStreamPosition;
+        if (skip < 0) {
+            System.err.println("DEX file isn't laid out in order, so it can't be read " +
+                    "from a stream (offset " + offset + " comes after " + mStreamPosition + ")");
+            throw new DexDataException();
+        }
+        // Read rather than skip(), which doesn't work on pipes.  The window
+        // is about to be overwritten anyway.
+        byte[] scratch = mWindow.array();
+        while (skip > 0) {
+            int actual = mStream.read(scratch, 0, (int) Math.min(skip, scratch.length));
+            if (actual < 0) {
+                throw new EOFException("DEX file is truncated");
+            }
+            skip -= actual;
+            mStreamPosition += actual;
+        }
+    }
+
+    /**
+     * Makes the window at least the given size, keeping its byte order,
+     * and clears it.
+     */
+    private void ensureWindow(int length) {
+        if (mWindow.capacity() < length) {
+            mWindow = ByteBuffer.allocate(Math.max(length, mWindow.capacity() * 3 / 2))
+                    .order(mWindow.order());
+        }
+        mWindow.clear();
     }
 
     /**
      * Fills the buffer by reading bytes from the DEX file.
      */
     void readBytes(byte[] buffer) throws IOException {
-        mDexFile.readFully(buffer);
+        mDexBuffer.get(buffer);
     }
 
     /**
      * Reads a single signed byte value.
      */
     byte readByte() throws IOException {
-        mDexFile.readFully(tmpBuf, 0, 1);
-        return tmpBuf[0];
+        return mDexBuffer.get();
     }
 
     /**
      * Reads a signed 16-bit integer, byte-swapping if necessary.
      */
     short readShort() throws IOException {
-        mDexFile.readFully(tmpBuf, 0, 2);
-        if (isBigEndian) {
-            return (short) ((tmpBuf[1] & 0xff) | ((tmpBuf[0] & 0xff) << 8));
-        } else {
-            return (short) ((tmpBuf[0] & 0xff) | ((tmpBuf[1] & 0xff) << 8));
-        }
+        return mDexBuffer.getShort();
     }
 
     /**
      * Reads a signed 32-bit integer, byte-swapping if necessary.
      */
     int readInt() throws IOException {
-        mDexFile.readFully(tmpBuf, 0, 4);
-
-        if (isBigEndian) {
-            return (tmpBuf[3] & 0xff) | ((tmpBuf[2] & 0xff) << 8) |
-                   ((tmpBuf[1] & 0xff) << 16) | ((tmpBuf[0] & 0xff) << 24);
-        } else {
-            return (tmpBuf[0] & 0xff) | ((tmpBuf[1] & 0xff) << 8) |
-                   ((tmpBuf[2] & 0xff) << 16) | ((tmpBuf[3] & 0xff) << 24);
-        }
+        return mDexBuffer.getInt();
     }
 
     /**
@@ -512,38 +1500,46 @@ public class DexData {
      * @throws IOException if we run off the end of the file
      */
     int readUnsignedLeb128() throws IOException {
-        int result = 0;
-        byte val;
+        return readUnsignedLeb128(mDexBuffer);
+    }
 
-        do {
-            val = readByte();
-            result = (result << 7) | (val & 0x7f);
-        } while (val < 0);
+    /**
+     * Reads a variable-length unsigned LEB128 value at a buffer's position,
+     * and moves the position past it.
+     */
+    private static int readUnsignedLeb128(ByteBuffer buf) {
+        int pos = buf.position();
+        int result = buf.get(pos++);
+
+        // Unrolled, since almost all values fit in one or two bytes.
+        if (result < 0) {
+            result &= 0x7f;
+            int val = buf.get(pos++);
+            result |= (val & 0x7f) << 7;
+            if (val < 0) {
+                val = buf.get(pos++);
+                result |= (val & 0x7f) << 14;
+                if (val < 0) {
+                    val = buf.get(pos++);
+                    result |= (val & 0x7f) << 21;
+                    if (val < 0) {
+                        val = buf.get(pos++);
+                        result |= val << 28;
+                    }
+                }
+            }
+        }
 
+        buf.position(pos);
         return result;
     }
 
     /**
-     * Reads a UTF-8 string.
-     *
-     * We don't know how long the UTF-8 string is, so we have to read one
-     * byte at a time.  We could make an educated guess based on the
-     * utf16_size and seek back if we get it wrong, but seeking backward
-     * may cause the underlying implementation to reload I/O buffers.
+     * Reads a Modified UTF-8 string from a string_data_item.
      */
     String readString() throws IOException {
         int utf16len = readUnsignedLeb128();
-        byte inBuf[] = new byte[utf16len * 3];      // worst case
-        int idx;
-
-        for (idx = 0; idx < inBuf.length; idx++) {
-            byte val = readByte();
-            if (val == 0)
-                break;
-            inBuf[idx] = val;
-        }
-
-        return new String(inBuf, 0, idx, "UTF-8");
+        return mMutf8.decode(mDexBuffer, utf16len);
     }
 
 
@@ -560,6 +1556,7 @@ public class DexData {
         public int fileSize;
         public int headerSize;
         public int endianTag;
+        public int mapOff;
         public int stringIdsSize, stringIdsOff;
         public int typeIdsSize, typeIdsOff;
         public int protoIdsSize, protoIdsOff;
@@ -577,56 +1574,17 @@ public class DexData {
     }
 
     /**
-     * Holds the contents of a type_id_item.
-     *
-     * This is chiefly a list of indices into the string table.  We need
-     * some additional bits of data, such as whether or not the type ID
-     * represents a class defined in this DEX, so we use an object for
-     * each instead of a simple integer.  (Could use a parallel array, but
-     * since this is a desktop app it's not essential.)
-     */
-    static class TypeIdItem {
-        public int descriptorIdx;       // index into string_ids
-
-        public boolean internal;        // defined within this DEX file?
-    }
-
-    /**
-     * Holds the contents of a proto_id_item.
-     */
-    static class ProtoIdItem {
-        public int shortyIdx;           // index into string_ids
-        public int returnTypeIdx;       // index into type_ids
-        public int parametersOff;       // file offset to a type_list
-
-        public int types[];             // contents of type list
-    }
-
-    /**
-     * Holds the contents of a field_id_item.
-     */
-    static class FieldIdItem {
-        public int classIdx;            // index into type_ids (defining class)
-        public int typeIdx;             // index into type_ids (field type)
-        public int nameIdx;             // index into string_ids
-    }
-
-    /**
-     * Holds the contents of a method_id_item.
-     */
-    static class MethodIdItem {
-        public int classIdx;            // index into type_ids
-        public int protoIdx;            // index into proto_ids
-        public int nameIdx;             // index into string_ids
-    }
-
-    /**
-     * Holds the contents of a class_def_item.
-     *
-     * We don't really need a class for this, but there's some stuff in
-     * the class_def_item that we might want later.
+     * Holds the contents of a map_item.
      */
-    static class ClassDefItem {
-        public int classIdx;            // index into type_ids
+    static class MapItem {
+        public int type;                // one of the TYPE_* constants
+        public int size;                // number of items in the section
+        public int offset;              // file offset of the section
+
+        /* the section types we care about */
+        public static final int TYPE_TYPE_LIST = 0x1001;
+        public static final int TYPE_CLASS_DATA_ITEM = 0x2000;
+        public static final int TYPE_CODE_ITEM = 0x2001;
+        public static final int TYPE_STRING_DATA_ITEM = 0x2002;
     }
 }
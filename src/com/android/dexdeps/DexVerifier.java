@@ -0,0 +1,144 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dexdeps;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+
+/**
+ * Checks the Adler-32 checksum and SHA-1 signature in a DEX file's header
+ * against its contents, to catch corrupted or truncated files before they
+ * are parsed.
+ *
+ * The checksum covers everything after the magic and the checksum
+ * itself, and the signature everything after the signature.  Both are
+ * computed straight from the buffer (which may be a mapped file), the
+ * checksum on the executor while the signature is computed on the calling
+ * thread.
+ */
+public class DexVerifier {
+
+    private static final int CHECKSUM_OFFSET = 8;
+    private static final int SIGNATURE_OFFSET = 12;
+    private static final int SIGNATURE_SIZE = 20;
+    private static final int FILE_SIZE_OFFSET = 32;
+
+    private final ExecutorService mExecutor;
+
+    /**
+     * @param executor runs the checksums alongside the signatures, or null
+     *     to compute them one after the other
+     */
+    public DexVerifier(ExecutorService executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * Verifies the DEX file in the buffer, from its position to its limit.
+     * Problems are reported on stderr.
+     *
+     * @throws DexDataException if the file doesn't match its header
+     */
+    public void verify(String name, ByteBuffer dex) {
+        final ByteBuffer buf = dex.slice().order(ByteOrder.LITTLE_ENDIAN);
+        if (buf.remaining() < FILE_SIZE_OFFSET + 4) {
+            System.err.println(name + ": too short to be a DEX file");
+            throw new DexDataException();
+        }
+        long fileSize = buf.getInt(FILE_SIZE_OFFSET) & 0xffffffffL;
+        if (fileSize != buf.remaining()) {
+            System.err.println(name + ": header says the file is " + fileSize +
+                    " bytes long, but it is " + buf.remaining());
+            throw new DexDataException();
+        }
+
+        Future<Long> checksum = null;
+        if (mExecutor != null) {
+            checksum = mExecutor.submit(new Callable<Long>() {
+                @Override
+                public Long call() {
+                    return computeChecksum(buf);
+                }
+            });
+        }
+        byte[] signature = computeSignature(buf);
+        long computedChecksum;
+        try {
+            computedChecksum = checksum != null ? checksum.get() : computeChecksum(buf);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ie);
+        } catch (ExecutionException ee) {
+            throw new RuntimeException(ee.getCause());
+        }
+
+        long expectedChecksum = buf.getInt(CHECKSUM_OFFSET) & 0xffffffffL;
+        byte[] expectedSignature = new byte[SIGNATURE_SIZE];
+        for (int i = 0; i < SIGNATURE_SIZE; i++) {
+            expectedSignature[i] = buf.get(SIGNATURE_OFFSET + i);
+        }
+        boolean ok = true;
+        if (computedChecksum != expectedChecksum) {
+            System.err.println(String.format("%s: checksum is %08x, but the header says %08x",
+                    name, computedChecksum, expectedChecksum));
+            ok = false;
+        }
+        if (!Arrays.equals(signature, expectedSignature)) {
+            System.err.println(String.format("%s: SHA-1 signature is %s, but the header says %s",
+                    name, toHex(signature), toHex(expectedSignature)));
+            ok = false;
+        }
+        if (!ok) {
+            throw new DexDataException();
+        }
+    }
+
+    private static long computeChecksum(ByteBuffer buf) {
+        ByteBuffer data = buf.duplicate();
+        data.position(SIGNATURE_OFFSET);
+        Adler32 adler = new Adler32();
+        adler.update(data);
+        return adler.getValue();
+    }
+
+    private static byte[] computeSignature(ByteBuffer buf) {
+        ByteBuffer data = buf.duplicate();
+        data.position(FILE_SIZE_OFFSET);
+        MessageDigest sha1;
+        try {
+            sha1 = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new AssertionError(nsae);
+        }
+        sha1.update(data);
+        return sha1.digest();
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        return hex.toString();
+    }
+}
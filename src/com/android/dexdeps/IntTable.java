@@ -0,0 +1,104 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dexdeps;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * A growable table of ints, stored either in an int[] on the heap or in a
+ * direct buffer outside of it.  DexData keeps its ID tables in these, so
+ * that large numbers of DEX files can be loaded without the tables adding
+ * to the heap (and to GC pauses).
+ */
+abstract class IntTable {
+
+    /**
+     * Returns a table backed by an int[].
+     */
+    static IntTable onHeap() {
+        return new HeapIntTable();
+    }
+
+    /**
+     * Returns a table backed by a direct buffer.
+     */
+    static IntTable offHeap() {
+        return new DirectIntTable();
+    }
+
+    abstract int get(int idx);
+
+    abstract void set(int idx, int value);
+
+    /**
+     * Makes room for at least count entries, keeping the current contents.
+     */
+    abstract void ensureCapacity(int count);
+
+    static int grownCapacity(int capacity, int count) {
+        return Math.max(count, capacity * 3 / 2);
+    }
+
+    private static class HeapIntTable extends IntTable {
+        private int[] values = new int[0];
+
+        @Override
+        int get(int idx) {
+            return values[idx];
+        }
+
+        @Override
+        void set(int idx, int value) {
+            values[idx] = value;
+        }
+
+        @Override
+        void ensureCapacity(int count) {
+            if (values.length < count) {
+                values = Arrays.copyOf(values, grownCapacity(values.length, count));
+            }
+        }
+    }
+
+    private static class DirectIntTable extends IntTable {
+        private IntBuffer values = IntBuffer.allocate(0);
+
+        @Override
+        int get(int idx) {
+            return values.get(idx);
+        }
+
+        @Override
+        void set(int idx, int value) {
+            values.put(idx, value);
+        }
+
+        @Override
+        void ensureCapacity(int count) {
+            if (values.capacity() < count) {
+                int capacity = grownCapacity(values.capacity(), count);
+                IntBuffer grown = ByteBuffer.allocateDirect(capacity * 4)
+                        .order(ByteOrder.nativeOrder()).asIntBuffer();
+                IntBuffer old = values.duplicate();
+                old.clear();
+                grown.put(old);
+                values = grown;
+            }
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dexdeps;
+
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes the Modified UTF-8 strings of a string_data_item.
+ *
+ * MUTF-8 differs from standard UTF-8 in that NUL is encoded as two bytes
+ * (0xc0 0x80), and that supplementary characters are encoded as a pair of
+ * three-byte surrogates rather than a single four-byte sequence.  Both
+ * decode naturally into Java chars.
+ *
+ * Nearly all strings we decode are type descriptors, which are ASCII; for
+ * those the byte length is the same as the UTF-16 length, so we can copy
+ * them out in one go and build the String from the bytes directly.  The
+ * scratch buffers are reused across strings, so one instance shouldn't be
+ * shared between threads.
+ *
+ * With a SymbolTable, strings that were seen before (in this or another
+ * DEX file) are looked up by their bytes and the existing String is
+ * returned, without decoding it again.
+ */
+class Mutf8 {
+    private byte[] bytes = new byte[64];
+    private char[] chars = new char[64];
+    private SymbolTable symbols;
+    private final SymbolTable.Key probe = new SymbolTable.Key();
+
+    /**
+     * Sets the table to intern decoded strings in, or null for none.
+     */
+    void setSymbolTable(SymbolTable symbols) {
+        this.symbols = symbols;
+    }
+
+    /**
+     * Decodes a NUL-terminated string with the given UTF-16 length,
+     * starting at the buffer's position.  The position is left just past
+     * the terminating NUL.
+     *
+     * @throws UTFDataFormatException if the data isn't valid MUTF-8
+     */
+    String decode(ByteBuffer buf, int utf16len) throws UTFDataFormatException {
+        int start = buf.position();
+        if (utf16len < 0 || utf16len > buf.remaining() - 1) {
+            // Can't be ASCII; let the slow path report any problem.
+            return decodeSlow(buf, start, utf16len);
+        }
+
+        if (bytes.length < utf16len) {
+            bytes = new byte[Math.max(utf16len, bytes.length * 2)];
+        }
+        buf.get(bytes, 0, utf16len);
+        if (buf.get() == 0 && isAscii(bytes, utf16len)) {
+            if (symbols == null) {
+                return new String(bytes, 0, utf16len, StandardCharsets.ISO_8859_1);
+            }
+            probe.set(bytes, utf16len);
+            SymbolTable.Symbol symbol = symbols.lookup(probe);
+            if (symbol == null) {
+                symbol = symbols.intern(probe,
+                        new String(bytes, 0, utf16len, StandardCharsets.ISO_8859_1));
+            }
+            return symbol.string;
+        }
+        return decodeSlow(buf, start, utf16len);
+    }
+
+    private static boolean isAscii(byte[] bytes, int length) {
+        for (int i = 0; i < length; i++) {
+            // Plain NULs don't appear inside strings; they'd be 0xc0 0x80.
+            if (bytes[i] <= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes one to three byte sequences up to the terminating NUL.
+     */
+    private String decodeSlow(ByteBuffer buf, int start, int utf16len)
+            throws UTFDataFormatException {
+        if (utf16len < 0) {
+            throw new UTFDataFormatException("Bad string length " + utf16len);
+        }
+        if (chars.length < utf16len) {
+            chars = new char[Math.max(utf16len, chars.length * 2)];
+        }
+
+        int pos = start;
+        int count = 0;
+        while (true) {
+            int a = buf.get(pos++) & 0xff;
+            if (a == 0) {
+                break;
+            }
+            char c;
+            if (a < 0x80) {
+                c = (char) a;
+            } else if ((a & 0xe0) == 0xc0) {
+                int b = buf.get(pos++) & 0xff;
+                if ((b & 0xc0) != 0x80) {
+                    throw badByte(b, pos - 1);
+                }
+                c = (char) (((a & 0x1f) << 6) | (b & 0x3f));
+            } else if ((a & 0xf0) == 0xe0) {
+                int b = buf.get(pos++) & 0xff;
+                int d = buf.get(pos++) & 0xff;
+                if ((b & 0xc0) != 0x80) {
+                    throw badByte(b, pos - 2);
+                }
+                if ((d & 0xc0) != 0x80) {
+                    throw badByte(d, pos - 1);
+                }
+                c = (char) (((a & 0x0f) << 12) | ((b & 0x3f) << 6) | (d & 0x3f));
+            } else {
+                throw badByte(a, pos - 1);
+            }
+            if (count == utf16len) {
+                throw new UTFDataFormatException("String at 0x" + Integer.toHexString(start) +
+                        " is longer than its declared length " + utf16len);
+            }
+            chars[count++] = c;
+        }
+        buf.position(pos);
+        if (symbols == null) {
+            return new String(chars, 0, count);
+        }
+
+        int length = pos - 1 - start;
+        if (bytes.length < length) {
+            bytes = new byte[Math.max(length, bytes.length * 2)];
+        }
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buf.get(start + i);
+        }
+        probe.set(bytes, length);
+        SymbolTable.Symbol symbol = symbols.lookup(probe);
+        if (symbol == null) {
+            symbol = symbols.intern(probe, new String(chars, 0, count));
+        }
+        return symbol.string;
+    }
+
+    private static UTFDataFormatException badByte(int value, int pos) {
+        return new UTFDataFormatException("Bad MUTF-8 byte 0x" + Integer.toHexString(value) +
+                " at 0x" + Integer.toHexString(pos));
+    }
+}
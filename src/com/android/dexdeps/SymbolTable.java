@@ -0,0 +1,144 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dexdeps;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns the strings of DEX files by their Modified UTF-8 bytes, so that
+ * a descriptor that appears in many DEX files (or many inputs) is decoded
+ * and held only once, and gets the same id everywhere.
+ *
+ * Lookups are lock-free and don't allocate, so parsers on different
+ * threads can share one table.  Adding a new symbol takes a lock, which
+ * keeps the ids dense; that happens once per distinct string.
+ */
+public class SymbolTable {
+
+    /**
+     * An interned string, with its id in this table.
+     */
+    public static final class Symbol {
+        public final int id;
+        public final String string;
+
+        Symbol(int id, String string) {
+            this.id = id;
+            this.string = string;
+        }
+    }
+
+    /**
+     * A range of MUTF-8 bytes.  Stored keys own a copy of their bytes;
+     * lookups use a reusable key over a scratch array.
+     */
+    static final class Key {
+        private byte[] bytes;
+        private int length;
+        private int hash;
+
+        void set(byte[] bytes, int length) {
+            this.bytes = bytes;
+            this.length = length;
+            int h = 1;
+            for (int i = 0; i < length; i++) {
+                h = 31 * h + bytes[i];
+            }
+            this.hash = h;
+        }
+
+        Key copy() {
+            Key key = new Key();
+            key.bytes = Arrays.copyOf(bytes, length);
+            key.length = length;
+            key.hash = hash;
+            return key;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            if (other.hash != hash || other.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (other.bytes[i] != bytes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final ConcurrentHashMap<Key, Symbol> mSymbols =
+            new ConcurrentHashMap<Key, Symbol>();
+    private volatile Symbol[] mById = new Symbol[1024];
+    private int mCount = 0;                 // guarded by this
+
+    /**
+     * Returns the symbol for the key's bytes, or null if it hasn't been
+     * interned yet.
+     */
+    Symbol lookup(Key key) {
+        return mSymbols.get(key);
+    }
+
+    /**
+     * Returns the symbol for the key's bytes, adding it with the given
+     * string if it's not there.
+     */
+    synchronized Symbol intern(Key key, String string) {
+        Symbol symbol = mSymbols.get(key);
+        if (symbol != null) {
+            return symbol;
+        }
+        symbol = new Symbol(mCount, string);
+        Symbol[] byId = mById;
+        if (mCount == byId.length) {
+            byId = Arrays.copyOf(byId, mCount * 2);
+        }
+        byId[mCount++] = symbol;
+        mById = byId;
+        mSymbols.put(key.copy(), symbol);
+        return symbol;
+    }
+
+    /**
+     * Returns the symbol with the given id.
+     */
+    public Symbol getSymbol(int id) {
+        Symbol[] byId = mById;
+        if (id < 0 || id >= byId.length || byId[id] == null) {
+            throw new IllegalArgumentException("No symbol " + id);
+        }
+        return byId[id];
+    }
+
+    /**
+     * Returns the number of distinct symbols.
+     */
+    public synchronized int size() {
+        return mCount;
+    }
+}
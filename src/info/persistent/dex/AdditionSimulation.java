@@ -0,0 +1,207 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.persistent.dex;
+
+import com.android.dexdeps.DexData;
+import com.android.dexdeps.Output;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Works out what adding a library to an input would cost: the method and
+ * field IDs of the library that the input doesn't already have, and the
+ * DEX files that would go over the 65,536 ID limit if they took it.
+ *
+ * IDs are matched by fingerprint (a hash of their class, name and
+ * signature), so the same method is recognized across DEX files.  Each
+ * DEX file of the input is kept as sorted arrays of fingerprints.
+ */
+class AdditionSimulation {
+
+    private static final PrintStream out = System.out;
+
+    /** The most IDs of one kind that a DEX file can have. */
+    private static final int MAX_IDS = 65536;
+
+    /**
+     * The distinct IDs of a library, with the package each belongs to.
+     */
+    static class Library {
+        final String fileName;
+        final Map<Long, String> methods = new HashMap<Long, String>();
+        final Map<Long, String> fields = new HashMap<Long, String>();
+
+        private Library(String fileName) {
+            this.fileName = fileName;
+        }
+
+        /**
+         * Reads the IDs of all the DEX files in a library.
+         */
+        static Library read(String fileName) throws IOException {
+            final Library library = new Library(fileName);
+            DexInput input = DexInput.open(fileName);
+            try {
+                input.accept(new DexInput.Visitor() {
+                    @Override
+                    public boolean visitDex(String module, String name, ByteBuffer dex)
+                            throws IOException {
+                        DexData dexData = new DexData(dex);
+                        dexData.load(getRequiredSections());
+                        for (int i = 0; i < dexData.getMethodIdCount(); i++) {
+                            library.methods.put(dexData.getMethodFingerprint(i),
+                                    Output.packageNameOnly(dexData.getMethodDeclClassName(i)));
+                        }
+                        for (int i = 0; i < dexData.getFieldIdCount(); i++) {
+                            library.fields.put(dexData.getFieldFingerprint(i),
+                                    Output.packageNameOnly(dexData.getFieldDeclClassName(i)));
+                        }
+                        return true;
+                    }
+                });
+            } finally {
+                input.close();
+            }
+            return library;
+        }
+    }
+
+    private static class DexModel {
+        String name;
+        long[] methods;
+        long[] fields;
+    }
+
+    private final Library library;
+    private final List<DexModel> dexes = new ArrayList<DexModel>();
+
+    AdditionSimulation(Library library) {
+        this.library = library;
+    }
+
+    /**
+     * Returns the DEX tables that add() needs.
+     */
+    static EnumSet<DexData.Section> getRequiredSections() {
+        return EnumSet.of(DexData.Section.STRINGS, DexData.Section.PROTO_IDS,
+                DexData.Section.METHOD_IDS, DexData.Section.FIELD_IDS);
+    }
+
+    /**
+     * Adds the fingerprints of a loaded DEX file of the input.
+     */
+    void add(DexData dexData, String name) {
+        DexModel dex = new DexModel();
+        dex.name = name;
+        dex.methods = new long[dexData.getMethodIdCount()];
+        for (int i = 0; i < dex.methods.length; i++) {
+            dex.methods[i] = dexData.getMethodFingerprint(i);
+        }
+        Arrays.sort(dex.methods);
+        dex.fields = new long[dexData.getFieldIdCount()];
+        for (int i = 0; i < dex.fields.length; i++) {
+            dex.fields[i] = dexData.getFieldFingerprint(i);
+        }
+        Arrays.sort(dex.fields);
+        dexes.add(dex);
+    }
+
+    /**
+     * Prints the new IDs by package, and the totals each DEX file would
+     * have with the library added to it.
+     */
+    void output() {
+        Map<String, int[]> newByPackage = new TreeMap<String, int[]>();
+        int newMethods = countNew(library.methods, 0, newByPackage);
+        int newFields = countNew(library.fields, 1, newByPackage);
+
+        out.println(String.format("Adding %s (%d methods, %d fields; %d methods, %d fields" +
+                " not already referenced):", library.fileName, library.methods.size(),
+                library.fields.size(), newMethods, newFields));
+        for (Map.Entry<String, int[]> e : newByPackage.entrySet()) {
+            String packageName = e.getKey().length() == 0 ? "<default>" : e.getKey();
+            out.println(String.format("    %s: %d new methods, %d new fields",
+                    packageName, e.getValue()[0], e.getValue()[1]));
+        }
+
+        List<String> fits = new ArrayList<String>();
+        for (DexModel dex : dexes) {
+            int methods = dex.methods.length + countMissing(library.methods, dex.methods);
+            int fields = dex.fields.length + countMissing(library.fields, dex.fields);
+            boolean overflows = methods > MAX_IDS || fields > MAX_IDS;
+            if (!overflows) {
+                fits.add(dex.name);
+            }
+            out.println(String.format("    Into %s: %d -> %d methods, %d -> %d fields%s",
+                    dex.name, dex.methods.length, methods, dex.fields.length, fields,
+                    overflows ? " (over the 65536 limit)" : ""));
+        }
+        if (!dexes.isEmpty() && fits.isEmpty()) {
+            out.println("    No DEX file can take the library without going over the limit");
+        }
+    }
+
+    /**
+     * Counts the library IDs that none of the input's DEX files have,
+     * adding them to their packages' counts at the given position.
+     */
+    private int countNew(Map<Long, String> ids, int kind, Map<String, int[]> byPackage) {
+        int count = 0;
+        for (Map.Entry<Long, String> e : ids.entrySet()) {
+            long fingerprint = e.getKey();
+            boolean found = false;
+            for (DexModel dex : dexes) {
+                long[] sorted = kind == 0 ? dex.methods : dex.fields;
+                if (Arrays.binarySearch(sorted, fingerprint) >= 0) {
+                    found = true;
+                    break;
+                }
+            }
+            if (found) {
+                continue;
+            }
+            count++;
+            int[] counts = byPackage.get(e.getValue());
+            if (counts == null) {
+                counts = new int[2];
+                byPackage.put(e.getValue(), counts);
+            }
+            counts[kind]++;
+        }
+        return count;
+    }
+
+    /**
+     * Counts the library IDs that a DEX file doesn't have.
+     */
+    private static int countMissing(Map<Long, String> ids, long[] sorted) {
+        int count = 0;
+        for (long fingerprint : ids.keySet()) {
+            if (Arrays.binarySearch(sorted, fingerprint) < 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
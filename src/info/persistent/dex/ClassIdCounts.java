@@ -0,0 +1,116 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.persistent.dex;
+
+import com.android.dexdeps.DexData;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Counts the method or field IDs of a loaded DEX file by the type index of
+ * their declaring class, keeping only the ones that pass the filter.
+ *
+ * A large range of IDs is split in half on a fork-join pool until the
+ * pieces are small enough to count directly.  Each piece counts into its
+ * own array, and the arrays are summed as the halves are joined, so no
+ * counter is shared between threads and the totals don't depend on how
+ * the work was split.  The pieces only look IDs up in the DexData's
+ * tables, which can be done from several threads once it's loaded.
+ */
+class ClassIdCounts extends RecursiveTask<ClassIdCounts> {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The most IDs that are counted without splitting them further. */
+    private static final int LEAF_SIZE = 8192;
+
+    private final DexData dexData;
+    private final boolean fields;
+    private final DexCount.Filter filter;
+    private final int start;
+    private final int end;
+
+    /** The number of IDs that pass the filter, by declaring class type index. */
+    int[] counts;
+    /** The number of IDs declared by classes that aren't in the DEX file. */
+    int externalCount;
+    /** The number of IDs that pass the filter. */
+    int filteredCount;
+
+    private ClassIdCounts(DexData dexData, boolean fields, DexCount.Filter filter,
+            int start, int end) {
+        this.dexData = dexData;
+        this.fields = fields;
+        this.filter = filter;
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Counts the method IDs, or the field IDs, of a DEX file.  External IDs
+     * are only counted with a filter, since it takes the class defs to
+     * tell them apart.
+     */
+    static ClassIdCounts count(DexData dexData, boolean fields, DexCount.Filter filter) {
+        int idCount = fields ? dexData.getFieldIdCount() : dexData.getMethodIdCount();
+        ClassIdCounts task = new ClassIdCounts(dexData, fields, filter, 0, idCount);
+        if (idCount <= LEAF_SIZE) {
+            // Not worth handing to another thread.
+            return task.compute();
+        }
+        return ForkJoinPool.commonPool().invoke(task);
+    }
+
+    @Override
+    protected ClassIdCounts compute() {
+        if (end - start <= LEAF_SIZE) {
+            countRange();
+            return this;
+        }
+        int middle = (start + end) >>> 1;
+        ClassIdCounts first = new ClassIdCounts(dexData, fields, filter, start, middle);
+        ClassIdCounts second = new ClassIdCounts(dexData, fields, filter, middle, end);
+        first.fork();
+        ClassIdCounts merged = second.compute();
+        ClassIdCounts other = first.join();
+        for (int i = 0; i < merged.counts.length; i++) {
+            merged.counts[i] += other.counts[i];
+        }
+        merged.externalCount += other.externalCount;
+        merged.filteredCount += other.filteredCount;
+        return merged;
+    }
+
+    private void countRange() {
+        counts = new int[dexData.getTypeIdCount()];
+        for (int i = start; i < end; i++) {
+            int classIdx = fields ?
+                    dexData.getFieldDeclClassIndex(i) : dexData.getMethodDeclClassIndex(i);
+            if (filter != DexCount.Filter.ALL) {
+                boolean isExternal = fields ?
+                        dexData.isFieldExternal(i) : dexData.isMethodExternal(i);
+                if (isExternal) {
+                    externalCount++;
+                }
+                if (!filter.accepts(isExternal)) {
+                    continue;
+                }
+            }
+            counts[classIdx]++;
+            filteredCount++;
+        }
+    }
+}
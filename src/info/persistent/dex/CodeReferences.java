@@ -0,0 +1,199 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.persistent.dex;
+
+import com.android.dexdeps.CodeScanner;
+import com.android.dexdeps.DexData;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects which method and field IDs the bytecode of each group of classes
+ * refers to.  Callers assign a group (a package, or a class) to each class
+ * def and to the owner of each ID; a reference is kept if the ID has a
+ * group (-1 means it's not of interest) and it's not the caller's own.
+ *
+ * The classes are scanned in parallel, in chunks handed out to a task per
+ * core on the common fork-join pool (as ClassIdCounts does), so no threads
+ * are started for each DEX file.  Each task collects the (caller group,
+ * ID) pairs it sees in its own set of longs, and the sets are merged at the
+ * end.
+ */
+class CodeReferences {
+
+    private static final int CHUNK_SIZE = 256;
+
+    /**
+     * Returns the distinct (caller group, ID) pairs, packed into longs to
+     * be taken apart with getCaller(), getIndex() and isField().
+     */
+    static long[] scan(final DexData dexData, final int[] classGroups,
+            final int[] methodGroups, final int[] fieldGroups) {
+        int chunkCount = (classGroups.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        int taskCount = Math.max(1,
+                Math.min(Runtime.getRuntime().availableProcessors(), chunkCount));
+        final AtomicInteger nextChunk = new AtomicInteger();
+        List<Callable<LongSet>> workers = new ArrayList<Callable<LongSet>>();
+        for (int i = 0; i < taskCount; i++) {
+            workers.add(new Callable<LongSet>() {
+                @Override
+                public LongSet call() {
+                    return scanChunks(dexData.newCodeScanner(), nextChunk,
+                            classGroups, methodGroups, fieldGroups);
+                }
+            });
+        }
+
+        try {
+            LongSet merged = null;
+            for (Future<LongSet> future : ForkJoinPool.commonPool().invokeAll(workers)) {
+                LongSet references = future.get();
+                if (merged == null) {
+                    merged = references;
+                } else {
+                    merged.addAll(references);
+                }
+            }
+            return merged.toArray();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ie);
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ee.getCause();
+            }
+            throw new RuntimeException(ee.getCause());
+        }
+    }
+
+    static int getCaller(long key) {
+        return (int) (key >>> 32);
+    }
+
+    static int getIndex(long key) {
+        return (int) (key & 0xffffffffL) >>> 1;
+    }
+
+    static boolean isField(long key) {
+        return (key & 1) != 0;
+    }
+
+    private static LongSet scanChunks(CodeScanner scanner, AtomicInteger nextChunk,
+            int[] classGroups, final int[] methodGroups, final int[] fieldGroups) {
+        final LongSet references = new LongSet();
+        final int[] caller = new int[1];
+        CodeScanner.Visitor visitor = new CodeScanner.Visitor() {
+            @Override
+            public void methodReferenced(int methodIdx) {
+                int callee = methodGroups[methodIdx];
+                if (callee >= 0 && callee != caller[0]) {
+                    references.add(((long) caller[0] << 32) | (methodIdx << 1));
+                }
+            }
+
+            @Override
+            public void fieldReferenced(int fieldIdx) {
+                int callee = fieldGroups[fieldIdx];
+                if (callee >= 0 && callee != caller[0]) {
+                    references.add(((long) caller[0] << 32) | (fieldIdx << 1) | 1);
+                }
+            }
+        };
+
+        int chunk;
+        while ((chunk = nextChunk.getAndIncrement()) * CHUNK_SIZE < classGroups.length) {
+            int end = Math.min(classGroups.length, (chunk + 1) * CHUNK_SIZE);
+            for (int i = chunk * CHUNK_SIZE; i < end; i++) {
+                caller[0] = classGroups[i];
+                scanner.scanClass(i, visitor);
+            }
+        }
+        return references;
+    }
+
+    /**
+     * An open-addressing hash set of non-negative longs.
+     */
+    private static class LongSet {
+        private static final long EMPTY = -1;
+
+        private long[] keys = newKeys(1024);
+        private int size;
+
+        private static long[] newKeys(int capacity) {
+            long[] keys = new long[capacity];
+            Arrays.fill(keys, EMPTY);
+            return keys;
+        }
+
+        void add(long key) {
+            long[] keys = this.keys;
+            int mask = keys.length - 1;
+            int slot = hash(key) & mask;
+            while (keys[slot] != EMPTY) {
+                if (keys[slot] == key) {
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            if (++size * 2 > keys.length) {
+                grow();
+            }
+        }
+
+        void addAll(LongSet other) {
+            for (long key : other.keys) {
+                if (key != EMPTY) {
+                    add(key);
+                }
+            }
+        }
+
+        long[] toArray() {
+            long[] array = new long[size];
+            int count = 0;
+            for (long key : keys) {
+                if (key != EMPTY) {
+                    array[count++] = key;
+                }
+            }
+            return array;
+        }
+
+        private void grow() {
+            long[] old = keys;
+            keys = newKeys(old.length * 2);
+            size = 0;
+            for (long key : old) {
+                if (key != EMPTY) {
+                    add(key);
+                }
+            }
+        }
+
+        private static int hash(long key) {
+            long h = key * 0x9e3779b97f4a7c15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+}
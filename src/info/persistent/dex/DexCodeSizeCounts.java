@@ -0,0 +1,60 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.persistent.dex;
+
+import com.android.dexdeps.DexData;
+
+import java.util.EnumSet;
+
+/**
+ * Counts the methods defined in each package, along with the size of their
+ * bytecode.  Only defined methods have code, so the filter doesn't apply.
+ */
+public class DexCodeSizeCounts extends DexCount {
+
+    DexCodeSizeCounts(OutputStyle outputStyle) {
+        super(outputStyle);
+    }
+
+    @Override
+    EnumSet<DexData.Section> getRequiredSections(Filter filter) {
+        return EnumSet.of(DexData.Section.CLASS_DATA);
+    }
+
+    @Override
+    public void generate(DexData dexData, boolean includeClasses, String packageFilter, int maxDepth, Filter filter) {
+        int classDefCount = dexData.getClassDefCount();
+        note("Read in " + classDefCount + " class defs.");
+
+        for (int i = 0; i < classDefCount; i++) {
+            int methodCount = dexData.getClassDefMethodCount(i);
+            if (methodCount == 0) {
+                continue;
+            }
+            addToPackage(dexData.getClassDefName(i), includeClasses, packageFilter, maxDepth,
+                    methodCount, dexData.getClassDefCodeSize(i));
+        }
+    }
+
+    @Override
+    String formatCount(int count, long codeSize) {
+        return count + " (" + codeSize + " bytes)";
+    }
+
+    @Override
+    long getWeight(int count, long codeSize) {
+        return codeSize;
+    }
+}
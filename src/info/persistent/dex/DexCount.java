@@ -15,10 +15,19 @@
 package info.persistent.dex;
 
 import com.android.dexdeps.DexData;
+import com.android.dexdeps.Output;
 
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
+import java.util.PriorityQueue;
 import java.util.TreeMap;
 
 public abstract class DexCount {
@@ -26,8 +35,30 @@ public abstract class DexCount {
     static final PrintStream out = System.out;
     final OutputStyle outputStyle;
     final Node packageTree;
-    final Map<String, IntHolder> packageCount;
+    Map<String, IntHolder> packageCount;
     int overallCount = 0;
+    long overallCodeSize = 0;
+    private Contribution recording;
+
+    /**
+     * What generate() printed and added to the counts for one DEX file,
+     * before the package filter, so that it can be replayed for a DEX file
+     * with the same contents without loading it.
+     */
+    static class Contribution {
+        private final List<String> notes = new ArrayList<String>();
+        private final Map<String, long[]> classes = new LinkedHashMap<String, long[]>();
+
+        /** The lines that were printed. */
+        List<String> getNotes() {
+            return notes;
+        }
+
+        /** The count and code size of each class, by descriptor. */
+        Map<String, long[]> getClasses() {
+            return classes;
+        }
+    }
 
     DexCount(OutputStyle outputStyle) {
         this.outputStyle = outputStyle;
@@ -39,22 +70,198 @@ public abstract class DexCount {
     public abstract void generate(
             DexData dexData, boolean includeClasses, String packageFilter, int maxDepth, Filter filter);
 
+    /**
+     * Returns the DEX tables that generate() needs for the given filter, so
+     * that the rest don't have to be read.
+     */
+    abstract EnumSet<DexData.Section> getRequiredSections(Filter filter);
+
+    /**
+     * Returns what generate() would add to the overall count for a DEX file
+     * of which only the header has been read, or -1 if that can't be told
+     * without loading its tables.
+     */
+    int getHeaderCount(DexData dexData, String packageFilter, Filter filter) {
+        return -1;
+    }
+
+    /**
+     * Starts recording what generate() does.
+     */
+    void startRecording() {
+        recording = new Contribution();
+    }
+
+    /**
+     * Stops recording, and returns what was recorded.
+     */
+    Contribution finishRecording() {
+        Contribution contribution = recording;
+        recording = null;
+        return contribution;
+    }
+
+    /**
+     * Prints and adds to the counts what generate() did for an identical
+     * DEX file.
+     */
+    void replay(Contribution contribution, boolean includeClasses, String packageFilter,
+            int maxDepth) {
+        for (String note : contribution.notes) {
+            note(note);
+        }
+        for (Map.Entry<String, long[]> e : contribution.classes.entrySet()) {
+            addToPackage(e.getKey(), includeClasses, packageFilter, maxDepth,
+                    (int) e.getValue()[0], e.getValue()[1]);
+        }
+    }
+
+    /**
+     * Prints a line about the DEX file that generate() is reading.
+     */
+    void note(String line) {
+        out.println(line);
+        if (recording != null) {
+            recording.notes.add(line);
+        }
+    }
+
+    /**
+     * Also keeps the counts of whole package names when they're output as
+     * a tree, whose branches --max-depth cuts short, so that they can be
+     * checked against budgets.
+     */
+    void keepPackageCounts() {
+        if (packageCount == null) {
+            packageCount = new TreeMap<String, IntHolder>();
+        }
+    }
+
+    /**
+     * Adds to the overall count without attributing it to any package, for
+     * counts that were taken from the header.
+     */
+    void addToOverall(int count) {
+        overallCount += count;
+    }
+
+    /**
+     * Adds to the counts of the package that a class is in (or of the class
+     * itself, with includeClasses).
+     */
+    void addToPackage(String classDescriptor, boolean includeClasses, String packageFilter,
+            int maxDepth, int count, long codeSize) {
+        if (recording != null) {
+            long[] recorded = recording.classes.get(classDescriptor);
+            if (recorded == null) {
+                recorded = new long[2];
+                recording.classes.put(classDescriptor, recorded);
+            }
+            recorded[0] += count;
+            recorded[1] += codeSize;
+        }
+        String packageName = includeClasses ?
+                Output.descriptorToDot(classDescriptor).replace('$', '.') :
+                Output.packageNameOnly(classDescriptor);
+        if (packageFilter != null &&
+                !packageName.startsWith(packageFilter)) {
+            return;
+        }
+        overallCount += count;
+        overallCodeSize += codeSize;
+        if (outputStyle == OutputStyle.TREE) {
+            String packageNamePieces[] = packageName.split("\\.");
+            Node packageNode = packageTree;
+            for (int i = 0; i < packageNamePieces.length && i < maxDepth; i++) {
+                packageNode.count += count;
+                packageNode.codeSize += codeSize;
+                String name = packageNamePieces[i];
+                if (name.length() == 0) {
+                    // This is declared in a class that is part of the default package.
+                    // Typical examples are methods that operate on arrays of primitive data types.
+                    name = "<default>";
+                }
+                Node childPackageNode = packageNode.children.get(name);
+                if (childPackageNode == null) {
+                    childPackageNode = new Node();
+                    packageNode.children.put(name, childPackageNode);
+                }
+                packageNode = childPackageNode;
+            }
+            packageNode.count += count;
+            packageNode.codeSize += codeSize;
+        }
+        if (packageCount != null) {
+            IntHolder holder = packageCount.get(packageName);
+            if (holder == null) {
+                holder = new IntHolder();
+                packageCount.put(packageName, holder);
+            }
+            holder.value += count;
+            holder.codeSize += codeSize;
+        }
+    }
+
+    /**
+     * Adds per-class counts, indexed by type index, to the counts of the
+     * packages (or classes) they're in.  Each class is only looked up once,
+     * however many IDs it has.
+     */
+    void addClassCounts(DexData dexData, int[] classCounts, boolean includeClasses,
+            String packageFilter, int maxDepth) {
+        for (int i = 0; i < classCounts.length; i++) {
+            if (classCounts[i] > 0) {
+                addToPackage(dexData.getTypeName(i), includeClasses, packageFilter, maxDepth,
+                        classCounts[i], 0);
+            }
+        }
+    }
+
+    /**
+     * Formats a count for output.  Subclasses that track code size include
+     * it here.
+     */
+    String formatCount(int count, long codeSize) {
+        return String.valueOf(count);
+    }
+
+    /**
+     * Returns what entries are ranked by for --top.  Subclasses that track
+     * code size rank by it instead.
+     */
+    long getWeight(int count, long codeSize) {
+        return count;
+    }
+
     class IntHolder {
 
         int value;
+        long codeSize;
     }
 
     enum Filter {
         ALL,
         DEFINED_ONLY,
-        REFERENCED_ONLY
+        REFERENCED_ONLY;
+
+        /**
+         * Returns whether an ID is counted, given whether its class is
+         * defined outside of the DEX file.
+         */
+        boolean accepts(boolean isExternal) {
+            switch (this) {
+                case DEFINED_ONLY:    return !isExternal;
+                case REFERENCED_ONLY: return isExternal;
+                default:              return true;
+            }
+        }
     }
 
     enum OutputStyle {
         TREE {
             @Override
             void output(DexCount counts) {
-                counts.packageTree.output("");
+                counts.packageTree.output("", counts);
             }
         },
         FLAT {
@@ -65,7 +272,9 @@ public abstract class DexCount {
                     if (packageName == "") {
                         packageName = "<no package>";
                     }
-                    System.out.printf("%6s %s\n", e.getValue().value, packageName);
+                    IntHolder holder = e.getValue();
+                    System.out.printf("%6s %s\n",
+                            counts.formatCount(holder.value, holder.codeSize), packageName);
                 }
             }
         };
@@ -77,24 +286,174 @@ public abstract class DexCount {
         outputStyle.output(this);
     }
 
+    /**
+     * Prints only the n heaviest packages (or classes, with
+     * includeClasses), heaviest first.  With a depth, packages are rolled up
+     * to that many name components first.
+     *
+     * The candidates go through a bounded min-heap, so only the ones that
+     * make it in get a name string, and only the final n are sorted.
+     */
+    void outputTop(int n, int depth) {
+        TopEntries top = new TopEntries(n);
+        if (outputStyle == OutputStyle.TREE) {
+            packageTree.offerTop(top, new ArrayList<String>(), depth);
+        } else {
+            Map<String, IntHolder> entries = packageCount;
+            if (depth != Integer.MAX_VALUE) {
+                entries = new HashMap<String, IntHolder>();
+                for (Map.Entry<String, IntHolder> e : packageCount.entrySet()) {
+                    String packageName = truncatePackage(e.getKey(), depth);
+                    IntHolder holder = entries.get(packageName);
+                    if (holder == null) {
+                        holder = new IntHolder();
+                        entries.put(packageName, holder);
+                    }
+                    holder.value += e.getValue().value;
+                    holder.codeSize += e.getValue().codeSize;
+                }
+            }
+            for (Map.Entry<String, IntHolder> e : entries.entrySet()) {
+                IntHolder holder = e.getValue();
+                if (top.admits(holder.value, holder.codeSize)) {
+                    String packageName = e.getKey();
+                    if (packageName.length() == 0) {
+                        packageName = "<no package>";
+                    }
+                    top.add(packageName, holder.value, holder.codeSize);
+                }
+            }
+        }
+
+        for (TopEntry entry : top.sorted()) {
+            out.printf("%6s %s\n", formatCount(entry.count, entry.codeSize), entry.name);
+        }
+    }
+
+    private static String truncatePackage(String packageName, int depth) {
+        int end = -1;
+        for (int i = 0; i < depth; i++) {
+            end = packageName.indexOf('.', end + 1);
+            if (end < 0) {
+                return packageName;
+            }
+        }
+        return packageName.substring(0, end);
+    }
+
+    static class TopEntry {
+        String name;
+        int count;
+        long codeSize;
+        long weight;
+    }
+
+    /**
+     * The heaviest entries seen so far, up to a fixed number of them.
+     */
+    class TopEntries {
+        private final int size;
+        private final PriorityQueue<TopEntry> heap;
+
+        TopEntries(int size) {
+            this.size = size;
+            // Lightest first, so that it's the one to go.  Among equals, the
+            // last name alphabetically goes first.
+            heap = new PriorityQueue<TopEntry>(size + 1, new Comparator<TopEntry>() {
+                @Override
+                public int compare(TopEntry a, TopEntry b) {
+                    if (a.weight != b.weight) {
+                        return a.weight < b.weight ? -1 : 1;
+                    }
+                    return b.name.compareTo(a.name);
+                }
+            });
+        }
+
+        /**
+         * Returns true if an entry with the given counts would make it in.
+         */
+        boolean admits(int count, long codeSize) {
+            return heap.size() < size || getWeight(count, codeSize) > heap.peek().weight;
+        }
+
+        void add(String name, int count, long codeSize) {
+            TopEntry entry = new TopEntry();
+            entry.name = name;
+            entry.count = count;
+            entry.codeSize = codeSize;
+            entry.weight = getWeight(count, codeSize);
+            heap.add(entry);
+            if (heap.size() > size) {
+                heap.poll();
+            }
+        }
+
+        /**
+         * Returns the entries, heaviest first.
+         */
+        List<TopEntry> sorted() {
+            List<TopEntry> entries = new ArrayList<TopEntry>(heap);
+            Collections.sort(entries, Collections.reverseOrder(heap.comparator()));
+            return entries;
+        }
+    }
+
     int getOverallCount() {
         return overallCount;
     }
 
+    long getOverallCodeSize() {
+        return overallCodeSize;
+    }
+
     static class Node {
 
         int count = 0;
+        long codeSize = 0;
         NavigableMap<String, Node> children = new TreeMap<String, Node>();
 
-        void output(String indent) {
+        /**
+         * Offers this node's count to the top entries if it's at the given
+         * depth, and otherwise recurses.  Shallower nodes offer whatever
+         * count isn't accounted for by their children.
+         */
+        void offerTop(TopEntries top, List<String> path, int depth) {
+            long childCount = 0;
+            long childCodeSize = 0;
+            if (path.size() < depth) {
+                for (Map.Entry<String, Node> e : children.entrySet()) {
+                    path.add(e.getKey());
+                    e.getValue().offerTop(top, path, depth);
+                    path.remove(path.size() - 1);
+                    childCount += e.getValue().count;
+                    childCodeSize += e.getValue().codeSize;
+                }
+            }
+            int ownCount = (int) (count - childCount);
+            long ownCodeSize = codeSize - childCodeSize;
+            if ((ownCount > 0 || ownCodeSize > 0) && path.size() > 0 &&
+                    top.admits(ownCount, ownCodeSize)) {
+                StringBuilder name = new StringBuilder();
+                for (String piece : path) {
+                    if (name.length() > 0) {
+                        name.append('.');
+                    }
+                    name.append(piece);
+                }
+                top.add(name.toString(), ownCount, ownCodeSize);
+            }
+        }
+
+        void output(String indent, DexCount counts) {
             if (indent.length() == 0) {
-                out.println("<root>: " + count);
+                out.println("<root>: " + counts.formatCount(count, codeSize));
             }
             indent += "    ";
             for (String name : children.navigableKeySet()) {
                 Node child = children.get(name);
-                out.println(indent + name + ": " + child.count);
-                child.output(indent);
+                out.println(indent + name + ": " + counts.formatCount(child.count, child.codeSize));
+                child.output(indent, counts);
             }
         }
     }
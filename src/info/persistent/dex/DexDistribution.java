@@ -0,0 +1,224 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.persistent.dex;
+
+import com.android.dexdeps.DexData;
+import com.android.dexdeps.Output;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * How methods and fields are spread over the classes and packages of an
+ * input: histograms and percentiles of the per-class counts, and the
+ * largest classes in each package.
+ *
+ * Each DEX file is tallied into int arrays indexed by type id, straight
+ * from the declaring class indices of its method and field IDs.  Only the
+ * classes that got a count are then looked up by name, to add them up
+ * across DEX files.
+ */
+class DexDistribution {
+
+    private static final PrintStream out = System.out;
+    private static final int LARGEST_PER_PACKAGE = 3;
+
+    private static class ClassCounts {
+        final String className;
+        int methods;
+        int fields;
+
+        ClassCounts(String className) {
+            this.className = className;
+        }
+    }
+
+    private final Map<String, ClassCounts> classes = new HashMap<String, ClassCounts>();
+    private int[] methodsByType = new int[0];
+    private int[] fieldsByType = new int[0];
+
+    /**
+     * Returns the DEX tables that add() needs for the given filter.
+     */
+    static EnumSet<DexData.Section> getRequiredSections(DexCount.Filter filter) {
+        EnumSet<DexData.Section> sections =
+                EnumSet.of(DexData.Section.METHOD_IDS, DexData.Section.FIELD_IDS);
+        if (filter != DexCount.Filter.ALL) {
+            sections.add(DexData.Section.CLASS_DEFS);
+        }
+        return sections;
+    }
+
+    /**
+     * Adds the method and field IDs of a loaded DEX file to the per-class
+     * counts.
+     */
+    void add(DexData dexData, String packageFilter, DexCount.Filter filter) {
+        int typeCount = dexData.getTypeIdCount();
+        if (methodsByType.length < typeCount) {
+            methodsByType = new int[typeCount];
+            fieldsByType = new int[typeCount];
+        } else {
+            Arrays.fill(methodsByType, 0, typeCount, 0);
+            Arrays.fill(fieldsByType, 0, typeCount, 0);
+        }
+
+        int methodIdCount = dexData.getMethodIdCount();
+        for (int i = 0; i < methodIdCount; i++) {
+            if (filter == DexCount.Filter.ALL || filter.accepts(dexData.isMethodExternal(i))) {
+                methodsByType[dexData.getMethodDeclClassIndex(i)]++;
+            }
+        }
+        int fieldIdCount = dexData.getFieldIdCount();
+        for (int i = 0; i < fieldIdCount; i++) {
+            if (filter == DexCount.Filter.ALL || filter.accepts(dexData.isFieldExternal(i))) {
+                fieldsByType[dexData.getFieldDeclClassIndex(i)]++;
+            }
+        }
+
+        for (int type = 0; type < typeCount; type++) {
+            if (methodsByType[type] == 0 && fieldsByType[type] == 0) {
+                continue;
+            }
+            String className = Output.descriptorToDot(dexData.getTypeName(type));
+            if (packageFilter != null && !className.startsWith(packageFilter)) {
+                continue;
+            }
+            ClassCounts counts = classes.get(className);
+            if (counts == null) {
+                counts = new ClassCounts(className);
+                classes.put(className, counts);
+            }
+            counts.methods += methodsByType[type];
+            counts.fields += fieldsByType[type];
+        }
+    }
+
+    /**
+     * Prints the distributions.
+     */
+    void output() {
+        out.println("Classes: " + classes.size());
+        int[] methods = new int[classes.size()];
+        int[] fields = new int[classes.size()];
+        ClassCounts mostMethods = null;
+        ClassCounts mostFields = null;
+        Map<String, List<ClassCounts>> packages = new TreeMap<String, List<ClassCounts>>();
+        int i = 0;
+        for (ClassCounts counts : classes.values()) {
+            methods[i] = counts.methods;
+            fields[i] = counts.fields;
+            i++;
+            if (mostMethods == null || counts.methods > mostMethods.methods) {
+                mostMethods = counts;
+            }
+            if (mostFields == null || counts.fields > mostFields.fields) {
+                mostFields = counts;
+            }
+            String packageName = packageNameOf(counts.className);
+            List<ClassCounts> packageClasses = packages.get(packageName);
+            if (packageClasses == null) {
+                packageClasses = new ArrayList<ClassCounts>();
+                packages.put(packageName, packageClasses);
+            }
+            packageClasses.add(counts);
+        }
+        if (classes.isEmpty()) {
+            return;
+        }
+
+        outputDistribution("Methods per class", methods, mostMethods.className);
+        outputDistribution("Fields per class", fields, mostFields.className);
+
+        out.println("Largest classes by package:");
+        for (Map.Entry<String, List<ClassCounts>> e : packages.entrySet()) {
+            outputPackage(e.getKey(), e.getValue());
+        }
+    }
+
+    private static void outputDistribution(String title, int[] values, String largest) {
+        Arrays.sort(values);
+        int max = values[values.length - 1];
+        out.println(String.format("%s: p50 %d, p90 %d, p99 %d, max %d (%s)", title,
+                percentile(values, 50), percentile(values, 90), percentile(values, 99),
+                max, largest));
+
+        // Buckets of 0, 1, 2-3, 4-7 and so on, up to the one holding max.
+        int bucketCount = 33 - Integer.numberOfLeadingZeros(max);
+        int[] buckets = new int[bucketCount];
+        for (int value : values) {
+            buckets[32 - Integer.numberOfLeadingZeros(value)]++;
+        }
+        for (int bucket = 0; bucket < bucketCount; bucket++) {
+            int low = bucket == 0 ? 0 : 1 << (bucket - 1);
+            int high = bucket == 0 ? 0 : (1 << bucket) - 1;
+            String range = low == high ? String.valueOf(low) : low + "-" + high;
+            out.println(String.format("    %12s: %d (%.1f%%)", range, buckets[bucket],
+                    100.0 * buckets[bucket] / values.length));
+        }
+    }
+
+    /**
+     * Returns the nearest-rank percentile of sorted values.
+     */
+    private static int percentile(int[] sorted, int percent) {
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+
+    private static void outputPackage(String packageName, List<ClassCounts> packageClasses) {
+        Collections.sort(packageClasses, new Comparator<ClassCounts>() {
+            @Override
+            public int compare(ClassCounts a, ClassCounts b) {
+                if (a.methods != b.methods) {
+                    return b.methods - a.methods;
+                }
+                return a.className.compareTo(b.className);
+            }
+        });
+        int total = 0;
+        for (ClassCounts counts : packageClasses) {
+            total += counts.methods;
+        }
+        StringBuilder line = new StringBuilder();
+        line.append(String.format("    %s (%d classes, %d methods):",
+                packageName.length() == 0 ? "<default>" : packageName,
+                packageClasses.size(), total));
+        int prefixLength = packageName.length() == 0 ? 0 : packageName.length() + 1;
+        for (int i = 0; i < packageClasses.size() && i < LARGEST_PER_PACKAGE; i++) {
+            ClassCounts counts = packageClasses.get(i);
+            line.append(i == 0 ? " " : ", ");
+            line.append(counts.className.substring(prefixLength));
+            line.append(' ').append(counts.methods);
+            if (total > 0) {
+                line.append(String.format(" (%d%%)", 100L * counts.methods / total));
+            }
+        }
+        out.println(line);
+    }
+
+    private static String packageNameOf(String className) {
+        int lastDot = className.lastIndexOf('.');
+        return lastDot < 0 ? "" : className.substring(0, lastDot);
+    }
+}
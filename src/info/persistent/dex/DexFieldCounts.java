@@ -25,75 +25,35 @@ public class DexFieldCounts extends DexCount {
     }
 
     @Override
-    public void generate(DexData dexData, boolean includeClasses, String packageFilter, int maxDepth, Filter filter) {
-        FieldRef[] fieldRefs = getFieldRefs(dexData, filter);
-
-        for (FieldRef fieldRef : fieldRefs) {
-            String classDescriptor = fieldRef.getDeclClassName();
-            String packageName = includeClasses ?
-                    Output.descriptorToDot(classDescriptor).replace('$', '.') :
-                    Output.packageNameOnly(classDescriptor);
-            if (packageFilter != null &&
-                    !packageName.startsWith(packageFilter)) {
-                continue;
-            }
-            overallCount++;
-            if (outputStyle == OutputStyle.TREE) {
-                String packageNamePieces[] = packageName.split("\\.");
-                Node packageNode = packageTree;
-                for (int i = 0; i < packageNamePieces.length && i < maxDepth; i++) {
-                    packageNode.count++;
-                    String name = packageNamePieces[i];
-                    if (packageNode.children.containsKey(name)) {
-                        packageNode = packageNode.children.get(name);
-                    } else {
-                        Node childPackageNode = new Node();
-                        if (name.length() == 0) {
-                            // This field is declared in a class that is part of the default package.
-                            name = "<default>";
-                        }
-                        packageNode.children.put(name, childPackageNode);
-                        packageNode = childPackageNode;
-                    }
-                }
-                packageNode.count++;
-            } else if (outputStyle == OutputStyle.FLAT) {
-                IntHolder count = packageCount.get(packageName);
-                if (count == null) {
-                    count = new IntHolder();
-                    packageCount.put(packageName, count);
-                }
-                count.value++;
-            }
+    EnumSet<DexData.Section> getRequiredSections(Filter filter) {
+        EnumSet<DexData.Section> sections = EnumSet.of(DexData.Section.FIELD_IDS);
+        if (filter != Filter.ALL) {
+            sections.add(DexData.Section.CLASS_DEFS);
         }
+        return sections;
     }
 
-    private static FieldRef[] getFieldRefs(DexData dexData, Filter filter) {
-        FieldRef[] fieldRefs = dexData.getFieldRefs();
-        out.println("Read in " + fieldRefs.length + " field IDs.");
-        if (filter == Filter.ALL) {
-            return fieldRefs;
+    @Override
+    int getHeaderCount(DexData dexData, String packageFilter, Filter filter) {
+        if (packageFilter != null || filter != Filter.ALL) {
+            return -1;
         }
+        return dexData.getFieldIdCount();
+    }
 
-        ClassRef[] externalClassRefs = dexData.getExternalReferences();
-        out.println("Read in " + externalClassRefs.length + " external class references.");
-        Set<FieldRef> externalFieldRefs = new HashSet<FieldRef>();
-        for (ClassRef classRef : externalClassRefs) {
-            Collections.addAll(externalFieldRefs, classRef.getFieldArray());
+    @Override
+    public void generate(DexData dexData, boolean includeClasses, String packageFilter, int maxDepth, Filter filter) {
+        note("Read in " + dexData.getFieldIdCount() + " field IDs.");
+        if (filter != Filter.ALL) {
+            note("Read in " + dexData.getExternalClassCount() + " external class references.");
         }
-        out.println("Read in " + externalFieldRefs.size() + " external field references.");
-        List<FieldRef> filteredFieldRefs = new ArrayList<FieldRef>();
-        for (FieldRef FieldRef : fieldRefs) {
-            boolean isExternal = externalFieldRefs.contains(FieldRef);
-            if ((filter == Filter.DEFINED_ONLY && !isExternal)
-                    || (filter == Filter.REFERENCED_ONLY && isExternal)) {
-                filteredFieldRefs.add(FieldRef);
-            }
+        ClassIdCounts ids = ClassIdCounts.count(dexData, true, filter);
+        if (filter != Filter.ALL) {
+            note("Read in " + ids.externalCount + " external field references.");
+            note("Filtered to " + ids.filteredCount + " " +
+                    (filter == Filter.DEFINED_ONLY ? "defined" : "referenced") + " field IDs.");
         }
-        out.println("Filtered to " + filteredFieldRefs.size() + " " +
-                (filter == Filter.DEFINED_ONLY ? "defined" : "referenced") + " field IDs.");
-        return filteredFieldRefs.toArray(new FieldRef[filteredFieldRefs.size()]);
-    }
-
 
+        addClassCounts(dexData, ids.counts, includeClasses, packageFilter, maxDepth);
+    }
 }
@@ -0,0 +1,509 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.persistent.dex;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+/**
+ * The DEX files in one input file, which could be a .dex or a .jar/.apk
+ * with classes*.dex entries inside.  Archives without DEX files of their
+ * own (app bundles, AARs, zips of split APKs) are searched for bundle
+ * modules and nested archives instead.
+ *
+ * The DEX data is only produced as it's visited, so that no more than one
+ * of them needs to be held in memory at a time.  Uncompressed entries are
+ * handed out as slices of the memory-mapped archive; only compressed ones
+ * get inflated (into memory, not into a temporary file), and with a
+ * ReusableBuffer they all get inflated into the same array.  Nested archives
+ * are handled the same way, so at most one of them is held per level of
+ * nesting, and we stop looking after MAX_NESTING_DEPTH levels.
+ */
+abstract class DexInput implements Closeable {
+    static final int MAX_NESTING_DEPTH = 4;
+
+    /**
+     * Receives the DEX files of an input, in archive order.
+     */
+    interface Visitor {
+        /**
+         * @param module the nested archive or app bundle module the DEX file
+         *     is in ("base", "splits.zip!base.apk"), or "" for the top level
+         * @param name the name of the DEX file
+         * @param dex the contents of the DEX file, which are only valid
+         *     until this returns
+         * @return false to stop visiting
+         */
+        boolean visitDex(String module, String name, ByteBuffer dex) throws IOException;
+    }
+
+    /**
+     * Receives the DEX files of a stream, in the order they come in.
+     */
+    interface StreamVisitor {
+        /**
+         * @param dex the contents of the DEX file, to be read forward only
+         *     and not closed; only valid until this returns
+         * @return false to stop visiting
+         */
+        boolean visitDex(String module, String name, InputStream dex) throws IOException;
+    }
+
+    /**
+     * Receives notifications about the work done to get at the DEX files,
+     * e.g. for profiling.
+     */
+    interface Listener {
+        /**
+         * Called before a compressed entry is inflated.
+         */
+        void inflateStarted(String name);
+
+        /**
+         * Called after a compressed entry was inflated.
+         */
+        void inflateFinished(String name, long compressedSize, long size);
+    }
+
+    /**
+     * Storage for inflated DEX files that's reused from one to the next,
+     * along with an Inflater.  What's in it is only valid until the next
+     * DEX file is inflated, so a visitor that holds on to the data past
+     * visitDex() has to switch the input over to another one first (as
+     * DexPipeline does).  It can be a direct buffer, to keep the DEX data
+     * out of the Java heap.
+     */
+    static class ReusableBuffer {
+        private final boolean direct;
+        private ByteBuffer buffer = ByteBuffer.allocate(0);
+        private final Inflater inflater = new Inflater(true);
+
+        ReusableBuffer(boolean direct) {
+            this.direct = direct;
+        }
+
+        /**
+         * Returns the buffer, cleared and limited to the given size.
+         */
+        ByteBuffer get(int size) {
+            if (buffer.capacity() < size) {
+                int capacity = Math.max(size, buffer.capacity() * 3 / 2);
+                buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+            }
+            buffer.clear();
+            buffer.limit(size);
+            return buffer;
+        }
+    }
+
+    Listener listener;
+    ReusableBuffer reusableBuffer;
+
+    /**
+     * Sets the listener to notify, or null for none.
+     */
+    void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the buffer to inflate DEX files into, or null to allocate one
+     * for each.
+     */
+    void setReusableBuffer(ReusableBuffer reusableBuffer) {
+        this.reusableBuffer = reusableBuffer;
+    }
+
+    /**
+     * Passes each of the DEX files in this input to the visitor.
+     *
+     * @return false if the visitor asked to stop
+     */
+    abstract boolean accept(Visitor visitor) throws IOException;
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    /**
+     * Opens an input file, first trying it as a zip archive and otherwise
+     * treating it as a .dex.
+     */
+    static DexInput open(String fileName) throws IOException {
+        File file = new File(fileName);
+        ZipDexScanner scanner;
+
+        // Try it as a zip file.
+        try {
+            scanner = ZipDexScanner.open(file);
+        } catch (FileNotFoundException fnfe) {
+            // not found, no point in retrying as non-zip.
+            System.err.println("Unable to open '" + fileName + "': " +
+                    fnfe.getMessage());
+            throw fnfe;
+        } catch (ZipException ze) {
+            // a zip, but not one that we can scan ourselves
+            return new ZipFileInput(new ZipFile(file));
+        }
+
+        if (scanner == null || scanner.getEntryCount() == 0) {
+            // not a zip, or nothing useful inside
+            return new DexFileInput(file);
+        }
+        return new ScannedZipInput(scanner);
+    }
+
+    /**
+     * Passes each of the DEX files in a stream, which could hold a .dex or
+     * a .jar/.apk, to the visitor, reading the stream once from start to
+     * end.  Archives are read entry by entry with ZipInputStream, so only
+     * the DEX files of the archive itself and of app bundle modules are
+     * found; nested archives would have to be held in memory.
+     *
+     * @param name the name to give a plain DEX file
+     * @return false if the visitor asked to stop
+     */
+    static boolean acceptStream(InputStream in, String name, StreamVisitor visitor)
+            throws IOException {
+        BufferedInputStream stream = new BufferedInputStream(in);
+        stream.mark(4);
+        byte[] magic = new byte[4];
+        int count = 0;
+        int actual;
+        while (count < magic.length &&
+                (actual = stream.read(magic, count, magic.length - count)) > 0) {
+            count += actual;
+        }
+        stream.reset();
+
+        if (count < 4 || magic[0] != 'P' || magic[1] != 'K' || magic[2] != 3 || magic[3] != 4) {
+            boolean result = visitor.visitDex("", name, stream);
+            // Let whatever is writing to us finish.  Not skip(), which
+            // doesn't work on pipes.
+            byte[] rest = new byte[32768];
+            while (stream.read(rest) >= 0) {
+            }
+            return result;
+        }
+
+        ZipInputStream zis = new ZipInputStream(stream);
+        boolean hasTopLevelDex = false;
+        List<String> skipped = new ArrayList<String>();
+        ZipEntry entry;
+        while ((entry = zis.getNextEntry()) != null) {
+            String entryName = entry.getName();
+            boolean result = true;
+            switch (ZipDexScanner.classifyName(entryName)) {
+                case ZipDexScanner.KIND_DEX:
+                    hasTopLevelDex = true;
+                    result = visitor.visitDex("", entryName, zis);
+                    break;
+                case ZipDexScanner.KIND_BUNDLE_DEX:
+                    result = visitor.visitDex(entryName.substring(0, entryName.indexOf('/')),
+                            entryName.substring(entryName.lastIndexOf('/') + 1), zis);
+                    break;
+                case ZipDexScanner.KIND_ARCHIVE:
+                    skipped.add(entryName);
+                    break;
+                default:
+                    break;
+            }
+            if (!result) {
+                return false;
+            }
+        }
+        if (!hasTopLevelDex) {
+            // An APK's own DEX files are the only ones it loads, so these
+            // only matter without them.
+            for (String entryName : skipped) {
+                System.err.println("Not looking inside " + entryName +
+                        ": nested archives can't be read from a stream");
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Visits the DEX files in a scanned archive, recursing into nested
+     * archives if there are no top-level DEX files.
+     */
+    boolean visitArchive(ZipDexScanner scanner, String module, int depth,
+            Visitor visitor) throws IOException {
+        for (int i = 0; i < scanner.getEntryCount(); i++) {
+            int kind = scanner.getKind(i);
+            if (kind != ZipDexScanner.KIND_DEX && scanner.hasTopLevelDex()) {
+                // An APK's own DEX files are the only ones it loads.
+                continue;
+            }
+            if (kind == ZipDexScanner.KIND_ARCHIVE && depth >= MAX_NESTING_DEPTH) {
+                System.err.println("Not looking inside " +
+                        nestedModule(module, scanner.getName(i)) + ": nested too deeply");
+                continue;
+            }
+            // A nested archive has to stay around while its entries are
+            // visited, so it can't go in the reusable buffer.
+            if (!visitEntry(module, depth, kind, scanner.getName(i),
+                    entryData(scanner, i, kind != ZipDexScanner.KIND_ARCHIVE), visitor)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Visits a single archive entry of the given kind.
+     */
+    boolean visitEntry(String module, int depth, int kind, String name,
+            ByteBuffer data, Visitor visitor) throws IOException {
+        switch (kind) {
+            case ZipDexScanner.KIND_DEX:
+                return visitor.visitDex(module, name, data);
+            case ZipDexScanner.KIND_BUNDLE_DEX:
+                return visitor.visitDex(
+                        nestedModule(module, name.substring(0, name.indexOf('/'))),
+                        name.substring(name.lastIndexOf('/') + 1), data);
+            case ZipDexScanner.KIND_ARCHIVE:
+                String nestedModule = nestedModule(module, name);
+                ZipDexScanner nested;
+                try {
+                    nested = ZipDexScanner.scan(data);
+                } catch (ZipException ze) {
+                    System.err.println("Skipping " + nestedModule + ": " + ze.getMessage());
+                    return true;
+                }
+                if (nested == null) {
+                    // not really a zip
+                    return true;
+                }
+                return visitArchive(nested, nestedModule, depth + 1, visitor);
+            default:
+                throw new AssertionError(kind);
+        }
+    }
+
+    private static String nestedModule(String module, String name) {
+        return module.length() == 0 ? name : module + "!" + name;
+    }
+
+    /**
+     * Returns the uncompressed contents of an archive entry.
+     *
+     * @param reuse whether the data may go in the reusable buffer
+     */
+    ByteBuffer entryData(ZipDexScanner scanner, int idx, boolean reuse) throws IOException {
+        ByteBuffer data = scanner.getData(idx);
+        switch (scanner.getMethod(idx)) {
+            case ZipDexScanner.METHOD_STORED:
+                // Use it right out of the archive.
+                return data;
+            case ZipDexScanner.METHOD_DEFLATED:
+                String name = scanner.getName(idx);
+                if (listener != null) {
+                    listener.inflateStarted(name);
+                }
+                ByteBuffer inflated = inflate(data, scanner.getSize(idx), name, reuse);
+                if (listener != null) {
+                    listener.inflateFinished(name, data.capacity(), inflated.remaining());
+                }
+                return inflated;
+            default:
+                throw new ZipException("Unsupported compression method for " +
+                        scanner.getName(idx));
+        }
+    }
+
+    /**
+     * Inflates a DEFLATED zip entry into memory.
+     *
+     * @param reuse whether the data may go in the reusable buffer
+     */
+    ByteBuffer inflate(ByteBuffer data, int size, String name, boolean reuse)
+            throws IOException {
+        if (size < 0) {
+            throw new ZipException("Bad size for entry " + name);
+        }
+        ByteBuffer dex = reuse && reusableBuffer != null ?
+                reusableBuffer.get(size) : ByteBuffer.allocate(size);
+        Inflater inflater = reusableBuffer != null ? reusableBuffer.inflater : new Inflater(true);
+        try {
+            inflater.setInput(data);
+            while (!inflater.finished()) {
+                if (!dex.hasRemaining()) {
+                    throw new ZipException("Entry " + name + " is larger than its declared size");
+                }
+                int actual = inflater.inflate(dex);
+                if (actual == 0 && inflater.needsInput()) {
+                    throw new ZipException("Truncated entry " + name);
+                }
+            }
+            if (dex.hasRemaining()) {
+                throw new ZipException("Entry " + name + " is smaller than its declared size");
+            }
+        } catch (DataFormatException dfe) {
+            throw new ZipException("Corrupt entry " + name + ": " + dfe.getMessage());
+        } finally {
+            if (reusableBuffer != null) {
+                inflater.reset();
+            } else {
+                inflater.end();
+            }
+        }
+        dex.flip();
+        return dex.slice();
+    }
+
+    /**
+     * A plain .dex file, which is memory-mapped.
+     */
+    private static class DexFileInput extends DexInput {
+        private final File file;
+
+        DexFileInput(File file) {
+            this.file = file;
+        }
+
+        @Override
+        boolean accept(Visitor visitor) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            ByteBuffer dex;
+            try {
+                dex = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            } finally {
+                raf.close();
+            }
+            return visitor.visitDex("", file.getName(), dex);
+        }
+    }
+
+    /**
+     * An archive whose central directory was read by ZipDexScanner.
+     */
+    private static class ScannedZipInput extends DexInput {
+        private final ZipDexScanner scanner;
+
+        ScannedZipInput(ZipDexScanner scanner) {
+            this.scanner = scanner;
+        }
+
+        @Override
+        boolean accept(Visitor visitor) throws IOException {
+            return visitArchive(scanner, "", 0, visitor);
+        }
+    }
+
+    /**
+     * An archive read through ZipFile, for the ones that ZipDexScanner
+     * can't handle.
+     */
+    private static class ZipFileInput extends DexInput {
+        private final ZipFile zipFile;
+        private final List<ZipEntry> entries = new ArrayList<ZipEntry>();
+        private final List<Integer> kinds = new ArrayList<Integer>();
+        private boolean hasTopLevelDex = false;
+
+        ZipFileInput(ZipFile zipFile) {
+            this.zipFile = zipFile;
+            for (ZipEntry entry : Collections.list(zipFile.entries())) {
+                int kind = ZipDexScanner.classifyName(entry.getName());
+                if (kind != 0) {
+                    entries.add(entry);
+                    kinds.add(kind);
+                    hasTopLevelDex |= kind == ZipDexScanner.KIND_DEX;
+                }
+            }
+        }
+
+        @Override
+        boolean accept(Visitor visitor) throws IOException {
+            for (int i = 0; i < entries.size(); i++) {
+                int kind = kinds.get(i);
+                if (kind != ZipDexScanner.KIND_DEX && hasTopLevelDex) {
+                    continue;
+                }
+                ZipEntry entry = entries.get(i);
+                if (!visitEntry("", 0, kind, entry.getName(),
+                        read(entry, kind != ZipDexScanner.KIND_ARCHIVE), visitor)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private ByteBuffer read(ZipEntry entry, boolean reuse) throws IOException {
+            if (listener == null) {
+                return readFully(entry, reuse);
+            }
+            listener.inflateStarted(entry.getName());
+            ByteBuffer data = readFully(entry, reuse);
+            listener.inflateFinished(entry.getName(), entry.getCompressedSize(), data.remaining());
+            return data;
+        }
+
+        private ByteBuffer readFully(ZipEntry entry, boolean reuse) throws IOException {
+            InputStream zis = zipFile.getInputStream(entry);
+            try {
+                long size = entry.getSize();
+                if (size >= 0 && size <= Integer.MAX_VALUE) {
+                    int length = (int) size;
+                    ByteBuffer data = reuse && reusableBuffer != null ?
+                            reusableBuffer.get(length) : ByteBuffer.allocate(length);
+                    ReadableByteChannel channel = Channels.newChannel(zis);
+                    while (data.hasRemaining()) {
+                        if (channel.read(data) == -1) {
+                            throw new EOFException("Truncated entry " + entry.getName());
+                        }
+                    }
+                    data.flip();
+                    return data.slice();
+                }
+
+                ByteArrayOutputStream data = new ByteArrayOutputStream();
+                byte copyBuf[] = new byte[32768];
+                int actual;
+                while ((actual = zis.read(copyBuf)) != -1) {
+                    data.write(copyBuf, 0, actual);
+                }
+                return ByteBuffer.wrap(data.toByteArray());
+            } finally {
+                zis.close();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            zipFile.close();
+        }
+    }
+}
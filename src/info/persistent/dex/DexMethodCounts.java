@@ -14,10 +14,7 @@
 
 package info.persistent.dex;
 
-import com.android.dexdeps.ClassRef;
 import com.android.dexdeps.DexData;
-import com.android.dexdeps.MethodRef;
-import com.android.dexdeps.Output;
 
 import java.util.*;
 
@@ -28,78 +25,40 @@ public class DexMethodCounts extends DexCount {
     }
 
     @Override
-    public void generate(DexData dexData, boolean includeClasses, String packageFilter, int maxDepth, Filter filter) {
-        MethodRef[] methodRefs = getMethodRefs(dexData, filter);
-
-        for (MethodRef methodRef : methodRefs) {
-            String classDescriptor = methodRef.getDeclClassName();
-            String packageName = includeClasses ?
-                    Output.descriptorToDot(classDescriptor).replace('$', '.') :
-                    Output.packageNameOnly(classDescriptor);
-            if (packageFilter != null &&
-                    !packageName.startsWith(packageFilter)) {
-                continue;
-            }
-            overallCount++;
-            if (outputStyle == OutputStyle.TREE) {
-                String packageNamePieces[] = packageName.split("\\.");
-                Node packageNode = packageTree;
-                for (int i = 0; i < packageNamePieces.length && i < maxDepth; i++) {
-                    packageNode.count++;
-                    String name = packageNamePieces[i];
-                    if (packageNode.children.containsKey(name)) {
-                        packageNode = packageNode.children.get(name);
-                    } else {
-                        Node childPackageNode = new Node();
-                        if (name.length() == 0) {
-                            // This method is declared in a class that is part of the default package.
-                            // Typical examples are methods that operate on arrays of primitive data types.
-                            name = "<default>";
-                        }
-                        packageNode.children.put(name, childPackageNode);
-                        packageNode = childPackageNode;
-                    }
-                }
-                packageNode.count++;
-            } else if (outputStyle == OutputStyle.FLAT) {
-                IntHolder count = packageCount.get(packageName);
-                if (count == null) {
-                    count = new IntHolder();
-                    packageCount.put(packageName, count);
-                }
-                count.value++;
-            }
+    EnumSet<DexData.Section> getRequiredSections(Filter filter) {
+        EnumSet<DexData.Section> sections = EnumSet.of(DexData.Section.METHOD_IDS);
+        if (filter != Filter.ALL) {
+            sections.add(DexData.Section.CLASS_DEFS);
         }
+        return sections;
     }
 
-    private static MethodRef[] getMethodRefs(DexData dexData, Filter filter) {
-        MethodRef[] methodRefs = dexData.getMethodRefs();
-        out.println("Read in " + methodRefs.length + " method IDs.");
-        if (filter == Filter.ALL) {
-            return methodRefs;
+    @Override
+    int getHeaderCount(DexData dexData, String packageFilter, Filter filter) {
+        if (packageFilter != null || filter != Filter.ALL) {
+            return -1;
         }
+        return dexData.getMethodIdCount();
+    }
 
-        ClassRef[] externalClassRefs = dexData.getExternalReferences();
-        out.println("Read in " + externalClassRefs.length +
-                " external class references.");
-        Set<MethodRef> externalMethodRefs = new HashSet<MethodRef>();
-        for (ClassRef classRef : externalClassRefs) {
-            Collections.addAll(externalMethodRefs, classRef.getMethodArray());
+    @Override
+    public void generate(DexData dexData, boolean includeClasses, String packageFilter, int maxDepth, Filter filter) {
+        note("Read in " + dexData.getMethodIdCount() + " method IDs.");
+        if (filter != Filter.ALL) {
+            note("Read in " + dexData.getExternalClassCount() +
+                    " external class references.");
         }
-        out.println("Read in " + externalMethodRefs.size() +
-                " external method references.");
-        List<MethodRef> filteredMethodRefs = new ArrayList<MethodRef>();
-        for (MethodRef methodRef : methodRefs) {
-            boolean isExternal = externalMethodRefs.contains(methodRef);
-            if ((filter == Filter.DEFINED_ONLY && !isExternal) ||
-                    (filter == Filter.REFERENCED_ONLY && isExternal)) {
-                filteredMethodRefs.add(methodRef);
-            }
+        // Only the declaring classes are needed to tell defined and
+        // referenced methods apart, so we don't build MethodRefs for them.
+        ClassIdCounts ids = ClassIdCounts.count(dexData, false, filter);
+        if (filter != Filter.ALL) {
+            note("Read in " + ids.externalCount +
+                    " external method references.");
+            note("Filtered to " + ids.filteredCount + " " +
+                    (filter == Filter.DEFINED_ONLY ? "defined" : "referenced") +
+                    " method IDs.");
         }
-        out.println("Filtered to " + filteredMethodRefs.size() + " " +
-                (filter == Filter.DEFINED_ONLY ? "defined" : "referenced") +
-                " method IDs.");
-        return filteredMethodRefs.toArray(
-                new MethodRef[filteredMethodRefs.size()]);
+
+        addClassCounts(dexData, ids.counts, includeClasses, packageFilter, maxDepth);
     }
 }
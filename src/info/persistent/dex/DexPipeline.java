@@ -0,0 +1,286 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.persistent.dex;
+
+import com.android.dexdeps.DexData;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Runs the DEX files of an input through three stages, so that getting at
+ * the next DEX file (reading and inflating it), loading the one before it
+ * and counting the one before that all happen at the same time:
+ *
+ *   inflate: DexInput.accept(), on a thread of its own
+ *   load:    Stages.load(), on another
+ *   count:   Stages.count(), on the calling thread, in input order
+ *
+ * The stages hand DEX files on through bounded queues.  Each DEX file in
+ * flight holds a Slot, with the ReusableBuffer it was inflated into and the
+ * DexData it's loaded into, and there are only SLOT_COUNT of them; once the
+ * inflater is that far ahead, it waits for the counter to free one.  So the
+ * memory used stays bounded, and the buffers and tables are still reused
+ * from one DEX file (and input) to the next.
+ */
+class DexPipeline {
+
+    /** One for each stage. */
+    private static final int SLOT_COUNT = 3;
+
+    /**
+     * The storage for one DEX file in flight.
+     */
+    static class Slot {
+        final DexInput.ReusableBuffer buffer;
+        private final boolean offHeap;
+        private DexData dexData;
+
+        Slot(boolean offHeap) {
+            this.buffer = new DexInput.ReusableBuffer(offHeap);
+            this.offHeap = offHeap;
+        }
+
+        /**
+         * Returns this slot's DexData, switched over to the given DEX file.
+         */
+        DexData getDexData(ByteBuffer dex) {
+            if (dexData == null) {
+                dexData = new DexData(dex);
+                dexData.setOffHeap(offHeap);
+            } else {
+                dexData.reset(dex);
+            }
+            return dexData;
+        }
+
+        /**
+         * Returns the DexData of the DEX file last put in this slot.
+         */
+        DexData getDexData() {
+            return dexData;
+        }
+    }
+
+    /**
+     * A DEX file on its way through the pipeline, or the end of the input
+     * (with no slot), or the failure of an earlier stage.
+     */
+    static class Item {
+        final Slot slot;
+        final String module;
+        final String name;
+        final String dexName;
+        final int dexIndex;
+        final ByteBuffer dex;
+        Throwable failure;
+
+        // Filled in by the load stage, for the count stage.
+        String contentKey;
+        DexCount.Contribution contribution;
+        int headerCount = -1;
+
+        Item(Slot slot, String module, String name, int dexIndex, ByteBuffer dex) {
+            this.slot = slot;
+            this.module = module;
+            this.name = name;
+            this.dexName = module.length() == 0 ? name : module + "!" + name;
+            this.dexIndex = dexIndex;
+            this.dex = dex;
+        }
+
+        static Item end(Throwable failure) {
+            Item item = new Item(null, "", "", -1, null);
+            item.failure = failure;
+            return item;
+        }
+    }
+
+    /**
+     * The work done on each DEX file after it's been read.
+     */
+    interface Stages {
+        /**
+         * Loads a DEX file, on the load thread.  This may not touch anything
+         * that count() does, other than the item.
+         */
+        void load(Item item) throws IOException;
+
+        /**
+         * Counts a loaded DEX file, on the calling thread.
+         *
+         * @return false to stop reading the input
+         */
+        boolean count(Item item) throws IOException;
+    }
+
+    private final List<Slot> slots = new ArrayList<Slot>();
+    private final BlockingQueue<Slot> freeSlots = new LinkedBlockingQueue<Slot>();
+
+    /**
+     * @param offHeap whether to inflate into direct buffers, and to keep the
+     *     ID tables outside of the Java heap
+     */
+    DexPipeline(boolean offHeap) {
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            slots.add(new Slot(offHeap));
+        }
+    }
+
+    /**
+     * Runs all of the DEX files of an input through the stages.  The input
+     * isn't closed.
+     *
+     * @return false if the count stage asked to stop
+     */
+    boolean run(final DexInput input, final String fileName, final Profiler profiler,
+            final Stages stages) throws IOException {
+        final BlockingQueue<Item> loadQueue = new ArrayBlockingQueue<Item>(SLOT_COUNT + 1);
+        final BlockingQueue<Item> countQueue = new ArrayBlockingQueue<Item>(SLOT_COUNT + 1);
+        // Whatever an earlier run left in flight is unused by now.
+        freeSlots.clear();
+        freeSlots.addAll(slots);
+
+        Thread inflater = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                if (profiler != null) {
+                    profiler.setInput(fileName);
+                }
+                Item end;
+                try {
+                    final Slot[] current = { freeSlots.take() };
+                    input.setReusableBuffer(current[0].buffer);
+                    input.accept(new DexInput.Visitor() {
+                        private int dexIndex = 0;
+
+                        @Override
+                        public boolean visitDex(String module, String name, ByteBuffer dex)
+                                throws IOException {
+                            try {
+                                loadQueue.put(new Item(current[0], module, name, dexIndex++, dex));
+                                current[0] = freeSlots.take();
+                            } catch (InterruptedException ie) {
+                                throw new InterruptedIOException();
+                            }
+                            input.setReusableBuffer(current[0].buffer);
+                            return true;
+                        }
+                    });
+                    end = Item.end(null);
+                } catch (InterruptedException ie) {
+                    return;
+                } catch (InterruptedIOException iioe) {
+                    return;
+                } catch (Throwable t) {
+                    end = Item.end(t);
+                }
+                try {
+                    loadQueue.put(end);
+                } catch (InterruptedException ie) {
+                    // The counter has stopped.
+                }
+            }
+        }, "dex-inflater");
+
+        Thread loader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                if (profiler != null) {
+                    profiler.setInput(fileName);
+                }
+                try {
+                    Item item;
+                    do {
+                        item = loadQueue.take();
+                        if (item.slot != null) {
+                            try {
+                                stages.load(item);
+                            } catch (Throwable t) {
+                                item.failure = t;
+                            }
+                        }
+                        countQueue.put(item);
+                    } while (item.slot != null && item.failure == null);
+                } catch (InterruptedException ie) {
+                    // The counter has stopped.
+                }
+            }
+        }, "dex-loader");
+
+        inflater.setDaemon(true);
+        loader.setDaemon(true);
+        inflater.start();
+        loader.start();
+        try {
+            while (true) {
+                Item item = countQueue.take();
+                if (item.failure != null) {
+                    rethrow(item.failure);
+                }
+                if (item.slot == null) {
+                    return true;
+                }
+                boolean more = stages.count(item);
+                freeSlots.add(item.slot);
+                if (!more) {
+                    return false;
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            // Stop the other stages if they're still going, and wait for
+            // them to let go of the input and the slots.
+            inflater.interrupt();
+            loader.interrupt();
+            joinUninterruptibly(inflater);
+            joinUninterruptibly(loader);
+        }
+    }
+
+    private static void rethrow(Throwable t) throws IOException {
+        if (t instanceof IOException) {
+            throw (IOException) t;
+        } else if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        }
+        throw new RuntimeException(t);
+    }
+
+    private static void joinUninterruptibly(Thread thread) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException ie) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
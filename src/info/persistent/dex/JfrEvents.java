@@ -0,0 +1,167 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.persistent.dex;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Emits a Java Flight Recorder event for each phase of a run, so that the
+ * cost per input and per phase can be read off a recording.
+ *
+ * This is only used when JFR was started along with the JVM, since
+ * registering the events starts up JFR's internals.  Then when no recording
+ * is running (or these events are disabled in it), each phase only costs an
+ * enabled check: the event is allocated once it's known to be wanted.
+ */
+class JfrEvents extends Profiler {
+
+    @Category({"DEX Method Counts"})
+    abstract static class PhaseEvent extends Event {
+        @Label("File Name")
+        @Description("The input file")
+        String fileName;
+
+        @Label("DEX")
+        @Description("The DEX file or archive entry within the input")
+        String dex;
+
+        @Label("DEX Index")
+        @Description("The index of the DEX file within the input, or -1")
+        int dexIndex;
+
+        @Label("Bytes Read")
+        @DataAmount
+        long bytesRead;
+
+        @Label("Bytes Inflated")
+        @DataAmount
+        long bytesInflated;
+
+        @Label("Item Count")
+        @Description("The number of strings, IDs or class defs read, or references counted")
+        long items;
+    }
+
+    @Name("info.persistent.dex.ArchiveOpen")
+    @Label("Archive Open")
+    @Description("Opening an input and scanning its central directory")
+    static class ArchiveOpenEvent extends PhaseEvent {
+    }
+
+    @Name("info.persistent.dex.DexInflate")
+    @Label("DEX Inflate")
+    @Description("Inflating a compressed archive entry")
+    static class DexInflateEvent extends PhaseEvent {
+    }
+
+    @Name("info.persistent.dex.DexVerify")
+    @Label("DEX Verify")
+    @Description("Checking a DEX file's checksum and signature")
+    static class DexVerifyEvent extends PhaseEvent {
+    }
+
+    @Name("info.persistent.dex.DexLoad")
+    @Label("DEX Load")
+    @Description("Loading the sections of a DEX file that are needed")
+    static class DexLoadEvent extends PhaseEvent {
+    }
+
+    @Name("info.persistent.dex.DexLoadSection")
+    @Label("DEX Load Section")
+    @Description("Loading a single section of a DEX file")
+    static class DexLoadSectionEvent extends PhaseEvent {
+        @Label("Section")
+        String section;
+    }
+
+    @Name("info.persistent.dex.CountAggregation")
+    @Label("Count Aggregation")
+    @Description("Adding the references of a DEX file to the counts")
+    static class CountAggregationEvent extends PhaseEvent {
+    }
+
+    @Name("info.persistent.dex.OutputRendering")
+    @Label("Output Rendering")
+    @Description("Printing the counts for an input")
+    static class OutputRenderingEvent extends PhaseEvent {
+    }
+
+    // Whether each event is enabled changes as recordings start and stop.
+    private final EventType archiveOpenType = EventType.getEventType(ArchiveOpenEvent.class);
+    private final EventType dexInflateType = EventType.getEventType(DexInflateEvent.class);
+    private final EventType dexVerifyType = EventType.getEventType(DexVerifyEvent.class);
+    private final EventType dexLoadType = EventType.getEventType(DexLoadEvent.class);
+    private final EventType dexLoadSectionType =
+            EventType.getEventType(DexLoadSectionEvent.class);
+    private final EventType countAggregationType =
+            EventType.getEventType(CountAggregationEvent.class);
+    private final EventType outputRenderingType =
+            EventType.getEventType(OutputRenderingEvent.class);
+
+    @Override
+    Object start(String phase) {
+        PhaseEvent event;
+        if (phase.equals("open")) {
+            event = archiveOpenType.isEnabled() ? new ArchiveOpenEvent() : null;
+        } else if (phase.equals("inflate")) {
+            event = dexInflateType.isEnabled() ? new DexInflateEvent() : null;
+        } else if (phase.equals("verify")) {
+            event = dexVerifyType.isEnabled() ? new DexVerifyEvent() : null;
+        } else if (phase.equals("load")) {
+            event = dexLoadType.isEnabled() ? new DexLoadEvent() : null;
+        } else if (phase.startsWith("load ")) {
+            event = dexLoadSectionType.isEnabled() ? new DexLoadSectionEvent() : null;
+        } else if (phase.equals("generate")) {
+            event = countAggregationType.isEnabled() ? new CountAggregationEvent() : null;
+        } else if (phase.equals("output")) {
+            event = outputRenderingType.isEnabled() ? new OutputRenderingEvent() : null;
+        } else {
+            throw new IllegalArgumentException(phase);
+        }
+        if (event == null) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    @Override
+    void finish(Object mark, String phase, long bytesRead, long bytesInflated, long items) {
+        if (mark == null) {
+            return;
+        }
+        PhaseEvent event = (PhaseEvent) mark;
+        event.end();
+        if (!event.shouldCommit()) {
+            return;
+        }
+        event.fileName = getInput();
+        event.dex = getDex();
+        event.dexIndex = getDexIndex();
+        event.bytesRead = bytesRead;
+        event.bytesInflated = bytesInflated;
+        event.items = items;
+        if (event instanceof DexLoadSectionEvent) {
+            ((DexLoadSectionEvent) event).section = phase.substring("load ".length());
+        }
+        event.commit();
+    }
+}
@@ -16,26 +16,79 @@ package info.persistent.dex;
 
 import com.android.dexdeps.DexData;
 import com.android.dexdeps.DexDataException;
+import com.android.dexdeps.DexVerifier;
+import com.android.dexdeps.SymbolTable;
 
+import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.RandomAccessFile;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipException;
-import java.util.zip.ZipFile;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import jdk.jfr.FlightRecorder;
 
 public class Main {
+    /** The exit code for when a --max-methods/--max-fields budget is exceeded. */
+    static final int EXIT_OVER_BUDGET = 3;
+
+    /** The input file name that reads a .dex or .apk from stdin. */
+    private static final String STDIN_FILE_NAME = "-";
+
+    /** How many DEX files' counts are kept for reuse by identical ones. */
+    private static final int CONTRIBUTION_CACHE_SIZE = 64;
+
     private boolean countFields;
+    private boolean countCodeSize;
     private boolean includeClasses;
     private String packageFilter;
     private int maxDepth = Integer.MAX_VALUE;
     private DexMethodCounts.Filter filter = DexMethodCounts.Filter.ALL;
     private DexMethodCounts.OutputStyle outputStyle = DexMethodCounts.OutputStyle.TREE;
+    private int topCount;
+    private int topDepth = Integer.MAX_VALUE;
+    private int maxCount = -1;
+    private int maxDexCount = -1;
+    private boolean budgetsFields;
+    private boolean checkOnly;
+    private boolean showDistribution;
+    private boolean showReferences;
+    private List<String> removePrefixes;
+    private String addLibraryFileName;
+    private boolean verify;
+    private DexVerifier verifier;
+    private AdditionSimulation.Library addLibrary;
+    private String packageBudgetsFileName;
+    private String budgetReportFileName;
+    private PackageBudgets packageBudgets;
+    private boolean overBudget;
+    private String statsFileName;
+    private Stats stats;
+    private Profiler profiler;
+    private String batchFileName;
+    private boolean offHeap;
+    private String saveSnapshotFileName;
+    private String loadSnapshotFileName;
+    private Snapshot snapshot;
+    private String[] options;
+
+    // Shared by all the inputs of a run (and of a batch), so that it
+    // doesn't have to be reallocated for each of them.
+    private SymbolTable symbols = new SymbolTable();
+    private DexPipeline pipeline;
+    private Map<String, DexCount.Contribution> contributions = createContributionCache();
 
     public static void main(String[] args) {
         Main main = new Main();
@@ -45,27 +98,44 @@ public class Main {
     void run(String[] args) {
         try {
             String[] inputFileNames = parseArgs(args);
-            int overallCount = 0;
-            for (String fileName : collectFileNames(inputFileNames)) {
-                System.out.println("Processing " + fileName);
-                DexCount counts;
-                if (countFields) {
-                    counts = new DexFieldCounts(outputStyle);
+            if (statsFileName != null) {
+                stats = new Stats();
+            }
+            profiler = Profiler.combine(createJfrEvents(), stats);
+            pipeline = new DexPipeline(offHeap);
+            verifier = createVerifier();
+            if (packageBudgetsFileName != null) {
+                packageBudgets = PackageBudgets.read(packageBudgetsFileName);
+            }
+            if (saveSnapshotFileName != null) {
+                snapshot = new Snapshot();
+            }
+            String overallLine = formatOverall(createCounts());
+            if (loadSnapshotFileName != null) {
+                overallLine = processSnapshot(overallLine);
+            }
+            if (!(overBudget && checkOnly)) {
+                overallLine = processInputs(inputFileNames, overallLine);
+            }
+            if (batchFileName != null && !(overBudget && checkOnly)) {
+                overallLine = processBatch(overallLine);
+            }
+            if (!checkOnly) {
+                System.out.println(overallLine);
+            }
+            if (budgetReportFileName != null) {
+                packageBudgets.write(budgetReportFileName);
+            }
+            if (snapshot != null) {
+                snapshot.write(saveSnapshotFileName);
+            }
+            if (stats != null) {
+                if (statsFileName.length() == 0) {
+                    stats.print(System.err);
                 } else {
-                    counts = new DexMethodCounts(outputStyle);
+                    stats.write(statsFileName);
                 }
-                List<RandomAccessFile> dexFiles = openInputFiles(fileName);
-
-                for (RandomAccessFile dexFile : dexFiles) {
-                    DexData dexData = new DexData(dexFile);
-                    dexData.load();
-                    counts.generate(dexData, includeClasses, packageFilter, maxDepth, filter);
-                    dexFile.close();
-                }
-                counts.output();
-                overallCount = counts.getOverallCount();
             }
-            System.out.println(String.format("Overall %s count: %d", countFields ? "field" : "method", overallCount));
         } catch (UsageException ue) {
             usage();
             System.exit(2);
@@ -78,83 +148,664 @@ public class Main {
             /* a message was already reported, just bail quietly */
             System.exit(1);
         }
+        if (overBudget) {
+            System.exit(EXIT_OVER_BUDGET);
+        }
+    }
+
+    /**
+     * Counts and outputs each of the given input files (or the files in the
+     * given directories).
+     *
+     * @return the overall count line of the last input, or the given one
+     *     if there were none
+     */
+    private String processInputs(String[] inputFileNames, String overallLine)
+            throws IOException {
+        for (String fileName : collectFileNames(inputFileNames)) {
+            DexCount counts = processInput(fileName);
+            overallLine = formatOverall(counts);
+            if (overBudget && checkOnly) {
+                break;
+            }
+        }
+        return overallLine;
+    }
+
+    /**
+     * Outputs the counts of each input in the --load-snapshot file that
+     * were saved for what's being counted now, just as if the input had
+     * been counted again.
+     */
+    private String processSnapshot(String overallLine) throws IOException {
+        Snapshot loaded = Snapshot.read(loadSnapshotFileName);
+        String metric = getMetric();
+        if (!loaded.getMetrics().contains(metric)) {
+            System.err.println(String.format("%s has no %s counts, only %s",
+                    loadSnapshotFileName, metric, loaded.getMetrics()));
+            throw new DexDataException();
+        }
+        for (Snapshot.Input input : loaded.getInputs()) {
+            List<Snapshot.Dex> dexes = input.sections.get(metric);
+            if (dexes == null) {
+                continue;
+            }
+            DexCount counts = processSnapshotInput(input.name, dexes);
+            overallLine = formatOverall(counts);
+            if (overBudget && checkOnly) {
+                break;
+            }
+        }
+        return overallLine;
     }
 
     /**
-     * Opens an input file, which could be a .dex or a .jar/.apk with a
-     * classes.dex inside.  If the latter, we extract the contents to a
-     * temporary file.
+     * Processes the inputs listed in the batch manifest (or stdin), which
+     * has a command line's worth of options and files on each line.  Options
+     * on a line are added to the ones given to the whole run, for that line
+     * only, except for the ones that are about the whole run.  Everything
+     * that can be is reused from one input to the next.
      */
-    List<RandomAccessFile> openInputFiles(String fileName) throws IOException {
-        List<RandomAccessFile> dexFiles = new ArrayList<RandomAccessFile>();
+    private String processBatch(String overallLine) throws IOException {
+        BufferedReader manifest = new BufferedReader(new InputStreamReader(
+                batchFileName.length() == 0 ? System.in : new FileInputStream(batchFileName),
+                StandardCharsets.UTF_8));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = manifest.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                String[] lineArgs = line.split("\\s+");
+                if (!lineArgs[0].startsWith("--")) {
+                    overallLine = processInputs(lineArgs, overallLine);
+                } else {
+                    Main lineMain = new Main();
+                    String[] args = Arrays.copyOf(options, options.length + lineArgs.length);
+                    System.arraycopy(lineArgs, 0, args, options.length, lineArgs.length);
+                    String[] fileNames = lineMain.parseArgs(args);
+                    String option = lineMain.getRunOptionChange(this);
+                    if (option != null) {
+                        System.err.println(String.format(
+                                "%s, line %d: %s can only be given for the whole run",
+                                batchFileName.length() == 0 ? "<stdin>" : batchFileName,
+                                lineNumber, option));
+                        throw new UsageException();
+                    }
+                    lineMain.shareRunState(this);
+                    if (lineMain.loadSnapshotFileName != null &&
+                            !lineMain.loadSnapshotFileName.equals(loadSnapshotFileName)) {
+                        overallLine = lineMain.processSnapshot(overallLine);
+                    }
+                    overallLine = lineMain.processInputs(fileNames, overallLine);
+                    overBudget |= lineMain.overBudget;
+                }
+                if (overBudget && checkOnly) {
+                    break;
+                }
+            }
+        } finally {
+            manifest.close();
+        }
+        return overallLine;
+    }
 
-        openInputFileAsZip(fileName, dexFiles);
-        if (dexFiles.size() == 0) {
-            File inputFile = new File(fileName);
-            RandomAccessFile dexFile = new RandomAccessFile(inputFile, "r");
-            dexFiles.add(dexFile);
+    /**
+     * Returns the first option that a batch line gave, on top of the given
+     * run's, which can't change from one line to the next because the run
+     * shares what it sets up, or null if there's none.
+     */
+    private String getRunOptionChange(Main run) {
+        if (!equal(statsFileName, run.statsFileName)) {
+            return "--stats";
+        } else if (!equal(packageBudgetsFileName, run.packageBudgetsFileName)) {
+            return "--package-budgets";
+        } else if (!equal(budgetReportFileName, run.budgetReportFileName)) {
+            return "--budget-report";
+        } else if (!equal(saveSnapshotFileName, run.saveSnapshotFileName)) {
+            return "--save-snapshot";
+        } else if (!equal(batchFileName, run.batchFileName)) {
+            return "--batch";
+        } else if (offHeap != run.offHeap) {
+            return "--off-heap";
         }
+        return null;
+    }
 
-        return dexFiles;
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
     }
 
     /**
-     * Tries to open an input file as a Zip archive (jar/apk) with a
-     * "classes.dex" inside.
+     * Makes this use the statistics, budgets and reusable buffers of the
+     * given run.
      */
-    void openInputFileAsZip(String fileName, List<RandomAccessFile> dexFiles) throws IOException {
-        ZipFile zipFile;
+    private void shareRunState(Main run) {
+        stats = run.stats;
+        profiler = run.profiler;
+        packageBudgets = run.packageBudgets;
+        symbols = run.symbols;
+        pipeline = run.pipeline;
+        snapshot = run.snapshot;
+        verifier = verify ? (run.verifier != null ? run.verifier : createVerifier()) : null;
+        if (addLibraryFileName == null ||
+                addLibraryFileName.equals(run.addLibraryFileName)) {
+            addLibrary = run.addLibrary;
+        }
+        contributions = run.contributions;
+    }
 
-        // Try it as a zip file.
-        try {
-            zipFile = new ZipFile(fileName);
-        } catch (FileNotFoundException fnfe) {
-            // not found, no point in retrying as non-zip.
-            System.err.println("Unable to open '" + fileName + "': " +
-                    fnfe.getMessage());
-            throw fnfe;
-        } catch (ZipException ze) {
-            // not a zip
+    /**
+     * Counts and outputs the DEX files in one input file.
+     */
+    private DexCount processInput(final String fileName) throws IOException {
+        System.out.println("Processing " + fileName);
+        final DexCount counts = createCounts();
+        final DexDistribution distribution =
+                showDistribution && !checkOnly ? new DexDistribution() : null;
+        final PackageReferences references =
+                showReferences && !checkOnly ? new PackageReferences(includeClasses) : null;
+        final RemovalSimulation removal = removePrefixes != null && !checkOnly
+                ? new RemovalSimulation(countFields, includeClasses) : null;
+        if (addLibraryFileName != null && addLibrary == null && !checkOnly) {
+            addLibrary = AdditionSimulation.Library.read(addLibraryFileName);
+        }
+        final AdditionSimulation addition =
+                addLibrary != null && !checkOnly ? new AdditionSimulation(addLibrary) : null;
+        final Map<String, DexCount.IntHolder> moduleCounts =
+                new LinkedHashMap<String, DexCount.IntHolder>();
+
+        Object mark = null;
+        if (profiler != null) {
+            profiler.setInput(fileName);
+        }
+        if (snapshot != null) {
+            snapshot.startInput(fileName, getMetric());
+        }
+        if (fileName.equals(STDIN_FILE_NAME)) {
+            checkStreamOptions();
+            DexInput.acceptStream(System.in, "<stdin>", new DexInput.StreamVisitor() {
+                private int dexIndex = 0;
+
+                @Override
+                public boolean visitDex(String module, String name, InputStream dex)
+                        throws IOException {
+                    int previousCount = counts.getOverallCount();
+                    long previousCodeSize = counts.getOverallCodeSize();
+                    countDexStream(counts, distribution, module, name, dexIndex++, dex);
+                    return dexCounted(fileName, counts, moduleCounts, module, name,
+                            previousCount, previousCodeSize);
+                }
+            });
+        } else {
+            if (profiler != null) {
+                mark = profiler.start("open");
+            }
+            DexInput input = DexInput.open(fileName);
+            if (profiler != null) {
+                profiler.finish(mark, "open", 0, 0, 0);
+                input.setListener(profiler);
+            }
+
+            try {
+                pipeline.run(input, fileName, profiler, new DexPipeline.Stages() {
+                    @Override
+                    public void load(DexPipeline.Item item) throws IOException {
+                        loadDex(counts, distribution, references, removal, addition, item);
+                    }
+
+                    @Override
+                    public boolean count(DexPipeline.Item item) {
+                        int previousCount = counts.getOverallCount();
+                        long previousCodeSize = counts.getOverallCodeSize();
+                        countDex(counts, distribution, references, removal, addition, item);
+                        return dexCounted(fileName, counts, moduleCounts, item.module,
+                                item.name, previousCount, previousCodeSize);
+                    }
+                });
+            } finally {
+                input.close();
+            }
+        }
+
+        outputCounts(fileName, counts, moduleCounts, distribution, references, removal,
+                addition);
+        return counts;
+    }
+
+    /**
+     * Outputs the counts of an input that was saved in a snapshot, after
+     * adding them up as processInput() would have.
+     */
+    private DexCount processSnapshotInput(String fileName, List<Snapshot.Dex> dexes) {
+        System.out.println("Processing " + fileName);
+        DexCount counts = createCounts();
+        Map<String, DexCount.IntHolder> moduleCounts =
+                new LinkedHashMap<String, DexCount.IntHolder>();
+        if (profiler != null) {
+            profiler.setInput(fileName);
+        }
+        if (snapshot != null) {
+            snapshot.startInput(fileName, getMetric());
+        }
+        int dexIndex = 0;
+        for (Snapshot.Dex dex : dexes) {
+            Object mark = null;
+            if (profiler != null) {
+                profiler.setDex(dex.module.length() == 0 ? dex.name : dex.module + "!" + dex.name,
+                        dexIndex++);
+                mark = profiler.start("generate");
+            }
+            int previousCount = counts.getOverallCount();
+            long previousCodeSize = counts.getOverallCodeSize();
+            counts.replay(dex.contribution, includeClasses, packageFilter, maxDepth);
+            if (snapshot != null) {
+                snapshot.addDex(dex.module, dex.name, dex.contribution);
+            }
+            if (profiler != null) {
+                profiler.finish(mark, "generate", 0, 0, counts.getOverallCount() - previousCount);
+            }
+            if (!dexCounted(fileName, counts, moduleCounts, dex.module, dex.name,
+                    previousCount, previousCodeSize)) {
+                break;
+            }
+        }
+        outputCounts(fileName, counts, moduleCounts, null, null, null, null);
+        return counts;
+    }
+
+    /**
+     * Checks the counts of an input against the package budgets, and
+     * outputs them (and the extras, if there are any) unless only checking.
+     */
+    private void outputCounts(String fileName, DexCount counts,
+            Map<String, DexCount.IntHolder> moduleCounts, DexDistribution distribution,
+            PackageReferences references, RemovalSimulation removal,
+            AdditionSimulation addition) {
+        Object mark = null;
+        if (profiler != null) {
+            profiler.setDex("", -1);
+            mark = profiler.start("output");
+        }
+        if (packageBudgets != null && !packageBudgets.check(fileName, counts, getCountName())) {
+            overBudget = true;
+        }
+        if (checkOnly) {
             return;
+        } else if (topCount > 0) {
+            counts.outputTop(topCount, topDepth);
+        } else {
+            counts.output();
+        }
+        if (moduleCounts.size() > 1 ||
+                (moduleCounts.size() == 1 && !moduleCounts.containsKey(""))) {
+            for (Map.Entry<String, DexCount.IntHolder> e : moduleCounts.entrySet()) {
+                String module = e.getKey().length() == 0 ? "<top level>" : e.getKey();
+                System.out.println(String.format("Module %s %s count: %s", module,
+                        getCountName(), counts.formatCount(e.getValue().value, e.getValue().codeSize)));
+            }
+        }
+        if (distribution != null) {
+            distribution.output();
+        }
+        if (references != null) {
+            references.output();
+        }
+        if (removal != null) {
+            removal.output(removePrefixes, getCountName());
+        }
+        if (addition != null) {
+            addition.output();
+        }
+        if (profiler != null) {
+            profiler.finish(mark, "output", 0, 0, counts.getOverallCount());
+        }
+    }
+
+    private DexCount createCounts() {
+        DexCount counts;
+        if (countFields) {
+            counts = new DexFieldCounts(outputStyle);
+        } else if (countCodeSize) {
+            counts = new DexCodeSizeCounts(outputStyle);
+        } else {
+            counts = new DexMethodCounts(outputStyle);
+        }
+        if (packageBudgets != null && maxDepth != Integer.MAX_VALUE) {
+            // The package tree stops at --max-depth, but budgets don't.
+            counts.keepPackageCounts();
+        }
+        return counts;
+    }
+
+    /**
+     * Checks a DEX file's count against the budgets, and adds it to its
+     * module's count.
+     *
+     * @return false if the rest of the input needn't be visited
+     */
+    private boolean dexCounted(String fileName, DexCount counts,
+            Map<String, DexCount.IntHolder> moduleCounts, String module, String name,
+            int previousCount, long previousCodeSize) {
+        int dexCount = counts.getOverallCount() - previousCount;
+        if (maxDexCount >= 0 && dexCount > maxDexCount) {
+            reportOverBudget(module.length() == 0 ? name : module + "!" + name,
+                    dexCount, maxDexCount, " per DEX file");
+        }
+        if (maxCount >= 0 && previousCount <= maxCount &&
+                counts.getOverallCount() > maxCount) {
+            reportOverBudget(fileName, counts.getOverallCount(), maxCount, "");
+        }
+        DexCount.IntHolder moduleCount = moduleCounts.get(module);
+        if (moduleCount == null) {
+            moduleCount = counts.new IntHolder();
+            moduleCounts.put(module, moduleCount);
+        }
+        moduleCount.value += counts.getOverallCount() - previousCount;
+        moduleCount.codeSize += counts.getOverallCodeSize() - previousCodeSize;
+        // Once a budget is blown, the rest can't change the answer.
+        return !(overBudget && checkOnly);
+    }
+
+    /**
+     * The load stage for a single DEX file: verifies it, looks for the
+     * counts of an identical one, and otherwise loads the tables that the
+     * counts and the extras need.  This runs on a DexPipeline thread, so it
+     * may only read the counts and the extras.
+     */
+    private void loadDex(DexCount counts, DexDistribution distribution,
+            PackageReferences references, RemovalSimulation removal,
+            AdditionSimulation addition, DexPipeline.Item item) throws IOException {
+        DexData dexData = item.slot.getDexData(item.dex);
+        dexData.setSymbolTable(symbols);
+        dexData.setLoadListener(null);
+        Object mark = null;
+        if (profiler != null) {
+            profiler.setDex(item.dexName, item.dexIndex);
+        }
+        if (verifier != null) {
+            if (profiler != null) {
+                mark = profiler.start("verify");
+            }
+            verifier.verify(item.dexName, item.dex);
+            if (profiler != null) {
+                profiler.finish(mark, "verify", item.dex.remaining(), 0, 0);
+            }
         }
 
-        // Open and add all files matching "classes.*\.dex" in the zip file.
-        for (ZipEntry entry : Collections.list(zipFile.entries())) {
-            if (entry.getName().matches("classes.*\\.dex")) {
-                dexFiles.add(openDexFile(zipFile, entry));
+        // A DEX file with the same contents as one counted before (e.g. in
+        // another split or flavor of the same app) adds the same counts.
+        if (distribution == null && references == null && removal == null &&
+                addition == null && !(checkOnly && packageBudgets == null)) {
+            item.contentKey = getContentKey(item.dex);
+        }
+        if (item.contentKey != null) {
+            item.contribution = contributions.get(item.contentKey);
+            if (item.contribution != null) {
+                return;
             }
         }
+        item.headerCount = loadTables(dexData, counts, distribution, references, removal,
+                addition);
+    }
 
-        zipFile.close();
+    /**
+     * The count stage for a single DEX file: adds it to the counts (and to
+     * the distribution, reference graph and what-if simulations, if there
+     * are any).
+     */
+    private void countDex(DexCount counts, DexDistribution distribution,
+            PackageReferences references, RemovalSimulation removal,
+            AdditionSimulation addition, DexPipeline.Item item) {
+        if (profiler != null) {
+            profiler.setDex(item.dexName, item.dexIndex);
+        }
+        if (item.contribution != null) {
+            Object mark = null;
+            if (profiler != null) {
+                mark = profiler.start("generate");
+            }
+            int previousCount = counts.getOverallCount();
+            counts.replay(item.contribution, includeClasses, packageFilter, maxDepth);
+            if (profiler != null) {
+                profiler.finish(mark, "generate", 0, 0, counts.getOverallCount() - previousCount);
+            }
+            if (snapshot != null) {
+                snapshot.addDex(item.module, item.name, item.contribution);
+            }
+            return;
+        }
+        DexCount.Contribution contribution = addToCounts(item.slot.getDexData(),
+                item.headerCount, counts, distribution, references, removal, addition,
+                item.dexName, item.contentKey);
+        if (snapshot != null) {
+            snapshot.addDex(item.module, item.name, contribution);
+        }
     }
 
-    RandomAccessFile openDexFile(ZipFile zipFile, ZipEntry entry) throws IOException  {
-        // We know it's a zip; see if there's anything useful inside.  A
-        // failure here results in some type of IOException (of which
-        // ZipException is a subclass).
-        InputStream zis = zipFile.getInputStream(entry);
+    /**
+     * Reads a single DEX file from a stream and adds it to the counts (and
+     * to the distribution, if there is one).  The stream is read forward
+     * only, and no further than the tables that are needed.
+     */
+    private void countDexStream(DexCount counts, DexDistribution distribution,
+            String module, String name, int dexIndex, InputStream dex) throws IOException {
+        // Not a pipeline slot's DexData: a stream can't be looked at after
+        // the fact, so its strings always have to be decoded into the heap.
+        DexData streamData = new DexData(dex);
+        streamData.setSymbolTable(symbols);
+        String dexName = module.length() == 0 ? name : module + "!" + name;
+        if (profiler != null) {
+            profiler.setDex(dexName, dexIndex);
+        }
+        int headerCount = loadTables(streamData, counts, distribution, null, null, null);
+        DexCount.Contribution contribution = addToCounts(streamData, headerCount, counts,
+                distribution, null, null, null, dexName, null);
+        if (snapshot != null) {
+            snapshot.addDex(module, name, contribution);
+        }
+    }
+
+    /**
+     * Loads the tables of a DEX file that the counts and the extras need.
+     *
+     * @return the count that the header alone gives, or -1 if the tables
+     *     had to be loaded
+     */
+    private int loadTables(DexData dexData, DexCount counts, DexDistribution distribution,
+            PackageReferences references, RemovalSimulation removal,
+            AdditionSimulation addition) throws IOException {
+        Object mark = null;
+        if (profiler != null) {
+            dexData.setLoadListener(profiler);
+            mark = profiler.start("load");
+        }
+        int headerCount = -1;
+        if (checkOnly && packageBudgets == null && snapshot == null) {
+            // All we need may be in the header.
+            dexData.load(EnumSet.noneOf(DexData.Section.class));
+            headerCount = counts.getHeaderCount(dexData, packageFilter, filter);
+        }
+        if (headerCount < 0) {
+            EnumSet<DexData.Section> sections = counts.getRequiredSections(filter);
+            if (distribution != null) {
+                sections.addAll(DexDistribution.getRequiredSections(filter));
+            }
+            if (references != null) {
+                sections.addAll(PackageReferences.getRequiredSections());
+            }
+            if (removal != null) {
+                sections.addAll(RemovalSimulation.getRequiredSections());
+            }
+            if (addition != null) {
+                sections.addAll(AdditionSimulation.getRequiredSections());
+            }
+            dexData.load(sections);
+        }
+        if (profiler != null) {
+            profiler.finish(mark, "load", dexData.getFileSize(), 0, 0);
+        }
+        return headerCount;
+    }
 
-        // Create a temp file to hold the DEX data, open it, and delete it
-        // to ensure it doesn't hang around if we fail.
-        File tempFile = File.createTempFile("dexdeps", ".dex");
-        RandomAccessFile dexFile = new RandomAccessFile(tempFile, "rw");
-        tempFile.delete();
+    /**
+     * Adds a loaded DEX file to the counts and the extras.  The counts are
+     * recorded under the content key, if there is one, and for the snapshot.
+     *
+     * @return what was recorded, or null if nothing was
+     */
+    private DexCount.Contribution addToCounts(DexData dexData, int headerCount, DexCount counts,
+            DexDistribution distribution, PackageReferences references,
+            RemovalSimulation removal, AdditionSimulation addition, String dexName,
+            String contentKey) {
+        Object mark = null;
+        if (profiler != null) {
+            mark = profiler.start("generate");
+        }
+        int previousCount = counts.getOverallCount();
+        DexCount.Contribution contribution = null;
+        if (headerCount >= 0) {
+            counts.addToOverall(headerCount);
+        } else {
+            boolean record = contentKey != null || snapshot != null;
+            if (record) {
+                counts.startRecording();
+            }
+            counts.generate(dexData, includeClasses, packageFilter, maxDepth, filter);
+            if (record) {
+                contribution = counts.finishRecording();
+            }
+            if (contentKey != null) {
+                contributions.put(contentKey, contribution);
+            }
+            if (distribution != null) {
+                distribution.add(dexData, packageFilter, filter);
+            }
+            if (references != null) {
+                references.add(dexData, packageFilter, filter);
+            }
+            if (removal != null) {
+                removal.add(dexData, dexName, packageFilter, filter);
+            }
+            if (addition != null) {
+                addition.add(dexData, dexName);
+            }
+        }
+        if (profiler != null) {
+            profiler.finish(mark, "generate", 0, 0, counts.getOverallCount() - previousCount);
+        }
+        return contribution;
+    }
 
-        // Copy all data from input stream to output file.
-        byte copyBuf[] = new byte[32768];
-        int actual;
+    /**
+     * Returns a key that identifies a DEX file by its contents (the SHA-1
+     * signature and size from its header) and what is being counted, or
+     * null if it's too short to have one.
+     */
+    private String getContentKey(ByteBuffer dex) {
+        if (dex.remaining() < 32) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder();
+        key.append(getCountName()).append(' ').append(filter).append(' ')
+                .append(dex.remaining()).append(' ');
+        // The signature is at offset 12 of the header, and 20 bytes long.
+        for (int i = 12; i < 32; i++) {
+            key.append(String.format("%02x", dex.get(dex.position() + i) & 0xff));
+        }
+        return key.toString();
+    }
 
-        while (true) {
-            actual = zis.read(copyBuf);
-            if (actual == -1)
-                break;
+    /**
+     * Returns a map that keeps the most recently used contributions.  It's
+     * synchronized, since the load stage looks in it while the count stage
+     * adds to it.
+     */
+    private static Map<String, DexCount.Contribution> createContributionCache() {
+        return Collections.synchronizedMap(
+                new LinkedHashMap<String, DexCount.Contribution>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(
+                            Map.Entry<String, DexCount.Contribution> eldest) {
+                        return size() > CONTRIBUTION_CACHE_SIZE;
+                    }
+                });
+    }
 
-            dexFile.write(copyBuf, 0, actual);
+    /**
+     * Reports that a count went over its budget, to be reflected in the
+     * exit code.
+     */
+    private void reportOverBudget(String name, int count, int max, String scope) {
+        System.err.println(String.format("Over budget: %s has %d %ss, more than the %d allowed%s",
+                name, count, getCountName(), max, scope));
+        overBudget = true;
+    }
+
+    /**
+     * Makes sure that nothing is asked for that needs more than one
+     * forward pass over the input, since stdin can only be read that way.
+     */
+    private void checkStreamOptions() {
+        String option = null;
+        if (countCodeSize) {
+            option = "--count-code-size";
+        } else if (showReferences) {
+            option = "--references";
+        } else if (removePrefixes != null) {
+            option = "--simulate-remove";
+        } else if (addLibraryFileName != null) {
+            option = "--simulate-add";
+        } else if (verify) {
+            option = "--verify";
+        } else if (batchFileName != null && batchFileName.length() == 0) {
+            option = "--batch without a manifest file";
+        }
+        if (option != null) {
+            System.err.println(option + " can't be used when reading from stdin");
+            throw new UsageException();
         }
+    }
 
-        dexFile.seek(0);
+    /**
+     * Returns the verifier for --verify, or null if it's not on.  The
+     * checksums are computed on a daemon thread, so that it doesn't keep
+     * the JVM alive.
+     */
+    private DexVerifier createVerifier() {
+        if (!verify) {
+            return null;
+        }
+        ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "dex-verifier");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        return new DexVerifier(executor);
+    }
 
-        return dexFile;
+    /**
+     * Returns the profiler that emits JFR events, or null if this JVM
+     * doesn't have JFR or it hasn't been started (e.g. with
+     * -XX:StartFlightRecording).  Registering the events starts up JFR's
+     * internals, which would more than double the time a small run takes,
+     * so that's left to runs that are being recorded.
+     */
+    private static Profiler createJfrEvents() {
+        try {
+            if (!FlightRecorder.isInitialized()) {
+                return null;
+            }
+            return new JfrEvents();
+        } catch (LinkageError e) {
+            return null;
+        }
     }
 
     private String[] parseArgs(String[] args) {
@@ -167,6 +818,8 @@ public class Main {
                 break;
             } else if (arg.equals("--count-fields")) {
                 countFields = true;
+            } else if (arg.equals("--count-code-size")) {
+                countCodeSize = true;
             } else if (arg.equals("--include-classes")) {
                 includeClasses = true;
             } else if (arg.startsWith("--package-filter=")) {
@@ -178,6 +831,67 @@ public class Main {
                 filter = Enum.valueOf(
                     DexMethodCounts.Filter.class,
                     arg.substring(arg.indexOf('=') + 1).toUpperCase());
+            } else if (arg.startsWith("--top=")) {
+                String[] top = arg.substring(arg.indexOf('=') + 1).split(",");
+                topCount = Integer.parseInt(top[0]);
+                if (top.length > 1) {
+                    topDepth = Integer.parseInt(top[1]);
+                }
+                if (topCount <= 0 || topDepth <= 0 || top.length > 2) {
+                    System.err.println("Bad --top value '" + arg + "'");
+                    throw new UsageException();
+                }
+            } else if (arg.startsWith("--max-methods=") || arg.startsWith("--max-fields=")) {
+                budgetsFields = arg.startsWith("--max-fields=");
+                String[] max = arg.substring(arg.indexOf('=') + 1).split(",", -1);
+                if (max.length > 2) {
+                    throw new UsageException();
+                }
+                if (max[0].length() > 0) {
+                    maxCount = Integer.parseInt(max[0]);
+                }
+                if (max.length > 1) {
+                    maxDexCount = Integer.parseInt(max[1]);
+                }
+            } else if (arg.startsWith("--package-budgets=")) {
+                packageBudgetsFileName = arg.substring(arg.indexOf('=') + 1);
+            } else if (arg.startsWith("--budget-report=")) {
+                budgetReportFileName = arg.substring(arg.indexOf('=') + 1);
+            } else if (arg.equals("--check")) {
+                checkOnly = true;
+            } else if (arg.equals("--distribution")) {
+                showDistribution = true;
+            } else if (arg.equals("--references")) {
+                showReferences = true;
+            } else if (arg.startsWith("--simulate-remove=")) {
+                removePrefixes = new ArrayList<String>();
+                for (String prefix : arg.substring(arg.indexOf('=') + 1).split(",")) {
+                    if (prefix.length() > 0) {
+                        removePrefixes.add(prefix);
+                    }
+                }
+                if (removePrefixes.isEmpty()) {
+                    System.err.println("Bad --simulate-remove value '" + arg + "'");
+                    throw new UsageException();
+                }
+            } else if (arg.startsWith("--simulate-add=")) {
+                addLibraryFileName = arg.substring(arg.indexOf('=') + 1);
+            } else if (arg.equals("--verify")) {
+                verify = true;
+            } else if (arg.equals("--off-heap")) {
+                offHeap = true;
+            } else if (arg.startsWith("--save-snapshot=")) {
+                saveSnapshotFileName = arg.substring(arg.indexOf('=') + 1);
+            } else if (arg.startsWith("--load-snapshot=")) {
+                loadSnapshotFileName = arg.substring(arg.indexOf('=') + 1);
+            } else if (arg.equals("--batch")) {
+                batchFileName = "";
+            } else if (arg.startsWith("--batch=")) {
+                batchFileName = arg.substring(arg.indexOf('=') + 1);
+            } else if (arg.equals("--stats")) {
+                statsFileName = "";
+            } else if (arg.startsWith("--stats=")) {
+                statsFileName = arg.substring(arg.indexOf('=') + 1);
             } else if (arg.startsWith("--output-style")) {
                 outputStyle = Enum.valueOf(
                     DexMethodCounts.OutputStyle.class,
@@ -188,9 +902,45 @@ public class Main {
             }
         }
 
-        // We expect at least one more argument (file name).
+        if ((maxCount >= 0 || maxDexCount >= 0) && budgetsFields != countFields) {
+            System.err.println(budgetsFields ?
+                    "--max-fields needs --count-fields" : "--max-methods can't be used with --count-fields");
+            throw new UsageException();
+        }
+
+        if (removePrefixes != null && countCodeSize) {
+            System.err.println("--simulate-remove can't be used with --count-code-size");
+            throw new UsageException();
+        }
+
+        if (budgetReportFileName != null && packageBudgetsFileName == null) {
+            System.err.println("--budget-report needs --package-budgets");
+            throw new UsageException();
+        }
+
+        if (loadSnapshotFileName != null) {
+            String option = null;
+            if (showDistribution) {
+                option = "--distribution";
+            } else if (showReferences) {
+                option = "--references";
+            } else if (removePrefixes != null) {
+                option = "--simulate-remove";
+            } else if (addLibraryFileName != null) {
+                option = "--simulate-add";
+            }
+            if (option != null) {
+                System.err.println(option + " can't be used with --load-snapshot");
+                throw new UsageException();
+            }
+        }
+
+        options = Arrays.copyOf(args, idx);
+
+        // We expect at least one more argument (file name), unless the
+        // files are listed in a batch manifest or come from a snapshot.
         int fileCount = args.length - idx;
-        if (fileCount == 0) {
+        if (fileCount == 0 && batchFileName == null && loadSnapshotFileName == null) {
             throw new UsageException();
         }
         String[] inputFileNames = new String[fileCount];
@@ -198,17 +948,65 @@ public class Main {
         return inputFileNames;
     }
 
+    /**
+     * Returns the line with the overall count of an input, which says what
+     * was counted, since that can change from one batch line to the next.
+     */
+    private String formatOverall(DexCount counts) {
+        return String.format("Overall %s count: %s", getCountName(),
+                counts.formatCount(counts.getOverallCount(), counts.getOverallCodeSize()));
+    }
+
+    /**
+     * Returns what is being counted, for the totals.
+     */
+    private String getCountName() {
+        if (countFields) {
+            return "field";
+        } else if (countCodeSize) {
+            return "defined method";
+        } else {
+            return "method";
+        }
+    }
+
+    /**
+     * Returns what is being counted and how it's filtered, which is what
+     * a snapshot's counts are kept by.
+     */
+    private String getMetric() {
+        return getCountName() + " " + filter.name().toLowerCase();
+    }
+
     private void usage() {
         System.err.print(
             "DEX per-package/class method counts v1.5\n" +
-            "Usage: dex-method-counts [options] <file.{dex,apk,jar,directory}> ...\n" +
+            "Usage: dex-method-counts [options] <file.{dex,apk,jar,directory}|-> ...\n" +
+            "       dex-method-counts [options] --batch[=manifest.txt] [<file> ...]\n" +
+            "       dex-method-counts [options] --load-snapshot=counts.snap [<file> ...]\n" +
             "Options:\n" +
             "  --count-fields\n" +
+            "  --count-code-size\n" +
             "  --include-classes\n" +
             "  --package-filter=com.foo.bar\n" +
             "  --max-depth=N\n" +
             "  --filter=ALL|DEFINED_ONLY|REFERENCED_ONLY\n" +
-            "  --output-style=FLAT|TREE\n"
+            "  --output-style=FLAT|TREE\n" +
+            "  --top=N[,depth]\n" +
+            "  --max-methods=[N][,perDex] | --max-fields=[N][,perDex]\n" +
+            "  --package-budgets=budgets.txt\n" +
+            "  --budget-report=report.tsv\n" +
+            "  --check\n" +
+            "  --distribution\n" +
+            "  --references\n" +
+            "  --simulate-remove=com.foo[,com.bar...]\n" +
+            "  --simulate-add=lib.{aar,dex,jar}\n" +
+            "  --batch[=manifest.txt]\n" +
+            "  --verify\n" +
+            "  --off-heap\n" +
+            "  --save-snapshot=counts.snap\n" +
+            "  --load-snapshot=counts.snap\n" +
+            "  --stats[=stats.tsv]\n"
         );
     }
 
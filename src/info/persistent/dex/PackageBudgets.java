@@ -0,0 +1,211 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.persistent.dex;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Limits on the counts of package prefixes, read from a budget file with a
+ * "package.prefix limit" pair on each line ('#' starts a comment).
+ *
+ * The prefixes are kept in a tree of package name components, so that all
+ * of them can be checked in one walk over the package tree (or one pass
+ * over the counts of whole package names, when the tree is cut short by
+ * --max-depth or isn't kept), only going down the branches that have
+ * budgets.  A prefix matches whole components: "com.foo" covers
+ * "com.foo.bar" but not "com.foobar".
+ */
+class PackageBudgets {
+
+    private static class Budget {
+        final Map<String, Budget> children = new HashMap<String, Budget>();
+        String prefix;
+        int limit = -1;
+        int index;
+    }
+
+    private static class Row {
+        String input;
+        String prefix;
+        int count;
+        int limit;
+    }
+
+    private final Budget root = new Budget();
+    private final List<Budget> budgets = new ArrayList<Budget>();
+    private final List<Row> rows = new ArrayList<Row>();
+
+    /**
+     * Reads a budget file.
+     *
+     * @throws IOException if it can't be read or has a malformed line
+     */
+    static PackageBudgets read(String fileName) throws IOException {
+        PackageBudgets packageBudgets = new PackageBudgets();
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(fileName), StandardCharsets.UTF_8));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                int comment = line.indexOf('#');
+                if (comment >= 0) {
+                    line = line.substring(0, comment);
+                }
+                line = line.trim();
+                if (line.length() == 0) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                int limit;
+                try {
+                    limit = fields.length == 2 ? Integer.parseInt(fields[1]) : -1;
+                } catch (NumberFormatException nfe) {
+                    limit = -1;
+                }
+                if (limit < 0) {
+                    throw new IOException(fileName + ":" + lineNumber +
+                            ": expected a package prefix and a limit");
+                }
+                packageBudgets.add(fields[0], limit);
+            }
+        } finally {
+            in.close();
+        }
+        return packageBudgets;
+    }
+
+    private void add(String prefix, int limit) {
+        Budget budget = root;
+        for (String name : prefix.split("\\.")) {
+            Budget child = budget.children.get(name);
+            if (child == null) {
+                child = new Budget();
+                budget.children.put(name, child);
+            }
+            budget = child;
+        }
+        if (budget.limit < 0) {
+            budget.prefix = prefix;
+            budget.index = budgets.size();
+            budgets.add(budget);
+        }
+        budget.limit = limit;
+    }
+
+    /**
+     * Checks every budget against the counts of an input, printing the
+     * ones that are exceeded.
+     *
+     * @return true if they were all met
+     */
+    boolean check(String input, DexCount counts, String countName) {
+        int[] totals = new int[budgets.size()];
+        if (counts.packageCount == null) {
+            addTreeCounts(counts.packageTree, root, totals);
+        } else {
+            for (Map.Entry<String, DexCount.IntHolder> e : counts.packageCount.entrySet()) {
+                addFlatCounts(e.getKey(), e.getValue().value, totals);
+            }
+        }
+
+        boolean met = true;
+        for (Budget budget : budgets) {
+            Row row = new Row();
+            row.input = input;
+            row.prefix = budget.prefix;
+            row.count = totals[budget.index];
+            row.limit = budget.limit;
+            rows.add(row);
+            if (row.count > row.limit) {
+                System.err.println(String.format(
+                        "Over budget: %s in %s has %d %ss, more than the %d allowed",
+                        row.prefix, input, row.count, countName, row.limit));
+                met = false;
+            }
+        }
+        return met;
+    }
+
+    /**
+     * Walks the package tree alongside the budget tree.  A tree node's count
+     * already includes everything below it.
+     */
+    private static void addTreeCounts(DexCount.Node node, Budget budget, int[] totals) {
+        for (Map.Entry<String, Budget> e : budget.children.entrySet()) {
+            DexCount.Node child = node.children.get(e.getKey());
+            if (child == null) {
+                continue;
+            }
+            Budget childBudget = e.getValue();
+            if (childBudget.limit >= 0) {
+                totals[childBudget.index] += child.count;
+            }
+            if (!childBudget.children.isEmpty()) {
+                addTreeCounts(child, childBudget, totals);
+            }
+        }
+    }
+
+    /**
+     * Adds the count of one package to every budget that covers it.
+     */
+    private void addFlatCounts(String packageName, int count, int[] totals) {
+        Budget budget = root;
+        int start = 0;
+        while (start <= packageName.length()) {
+            int end = packageName.indexOf('.', start);
+            if (end < 0) {
+                end = packageName.length();
+            }
+            budget = budget.children.get(packageName.substring(start, end));
+            if (budget == null) {
+                return;
+            }
+            if (budget.limit >= 0) {
+                totals[budget.index] += count;
+            }
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Writes the result of every check as tab-separated values, with a
+     * header line.
+     */
+    void write(String fileName) throws IOException {
+        PrintStream out = new PrintStream(new FileOutputStream(fileName), false, "UTF-8");
+        try {
+            out.print("input\tpackage\tcount\tlimit\tstatus\n");
+            for (Row row : rows) {
+                out.print(row.input + "\t" + row.prefix + "\t" + row.count + "\t" + row.limit +
+                        "\t" + (row.count > row.limit ? "over" : "ok") + "\n");
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.persistent.dex;
+
+import com.android.dexdeps.DexData;
+import com.android.dexdeps.Output;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A package-level reference graph: for each package that defines code,
+ * how many distinct method and field IDs of each other package its
+ * bytecode refers to.
+ *
+ * The distinct (caller package, ID) pairs of a DEX file are collected by
+ * CodeReferences, and then counted along each edge.  IDs are per DEX
+ * file, so an ID that is referenced from two DEX files counts in both, as
+ * it does against their method limits.
+ */
+class PackageReferences {
+
+    private static final PrintStream out = System.out;
+
+    private static class Edge {
+        String caller;
+        String callee;
+        int methods;
+        int fields;
+    }
+
+    private final boolean includeClasses;
+    private final Map<String, Integer> packageIds = new HashMap<String, Integer>();
+    private final List<String> packageNames = new ArrayList<String>();
+    private final Map<Long, Edge> edges = new HashMap<Long, Edge>();
+
+    PackageReferences(boolean includeClasses) {
+        this.includeClasses = includeClasses;
+    }
+
+    /**
+     * Returns the DEX tables that add() needs.
+     */
+    static EnumSet<DexData.Section> getRequiredSections() {
+        return EnumSet.of(DexData.Section.METHOD_IDS, DexData.Section.FIELD_IDS,
+                DexData.Section.CLASS_DEFS);
+    }
+
+    /**
+     * Scans the code of a loaded DEX file and adds its references to the
+     * graph.  Only references to IDs that pass the filter, and to packages
+     * that start with the package filter, are counted.
+     */
+    void add(DexData dexData, String packageFilter, DexCount.Filter filter) {
+        int typeCount = dexData.getTypeIdCount();
+        int[] typePackages = new int[typeCount];
+        int[] calleePackages = new int[typeCount];
+        for (int i = 0; i < typeCount; i++) {
+            String packageName = getPackageName(dexData.getTypeName(i));
+            typePackages[i] = getPackageId(packageName);
+            calleePackages[i] = packageFilter == null || packageName.startsWith(packageFilter)
+                    ? typePackages[i] : -1;
+        }
+
+        int methodIdCount = dexData.getMethodIdCount();
+        int[] methodPackages = new int[methodIdCount];
+        for (int i = 0; i < methodIdCount; i++) {
+            methodPackages[i] = filter.accepts(dexData.isMethodExternal(i))
+                    ? calleePackages[dexData.getMethodDeclClassIndex(i)] : -1;
+        }
+        int fieldIdCount = dexData.getFieldIdCount();
+        int[] fieldPackages = new int[fieldIdCount];
+        for (int i = 0; i < fieldIdCount; i++) {
+            fieldPackages[i] = filter.accepts(dexData.isFieldExternal(i))
+                    ? calleePackages[dexData.getFieldDeclClassIndex(i)] : -1;
+        }
+
+        int classDefCount = dexData.getClassDefCount();
+        int[] classPackages = new int[classDefCount];
+        for (int i = 0; i < classDefCount; i++) {
+            classPackages[i] = typePackages[dexData.getClassDefClassIndex(i)];
+        }
+
+        long[] references =
+                CodeReferences.scan(dexData, classPackages, methodPackages, fieldPackages);
+        for (long key : references) {
+            int caller = CodeReferences.getCaller(key);
+            int idx = CodeReferences.getIndex(key);
+            boolean isField = CodeReferences.isField(key);
+            int callee = isField ? fieldPackages[idx] : methodPackages[idx];
+            Long edgeKey = ((long) caller << 32) | callee;
+            Edge edge = edges.get(edgeKey);
+            if (edge == null) {
+                edge = new Edge();
+                edge.caller = packageNames.get(caller);
+                edge.callee = packageNames.get(callee);
+                edges.put(edgeKey, edge);
+            }
+            if (isField) {
+                edge.fields++;
+            } else {
+                edge.methods++;
+            }
+        }
+    }
+
+    private String getPackageName(String classDescriptor) {
+        return includeClasses ?
+                Output.descriptorToDot(classDescriptor).replace('$', '.') :
+                Output.packageNameOnly(classDescriptor);
+    }
+
+    private int getPackageId(String packageName) {
+        Integer id = packageIds.get(packageName);
+        if (id == null) {
+            id = packageNames.size();
+            packageIds.put(packageName, id);
+            packageNames.add(packageName);
+        }
+        return id;
+    }
+
+    /**
+     * Prints the edges, grouped by the referencing package, with the
+     * heaviest first within each group.
+     */
+    void output() {
+        List<Edge> sorted = new ArrayList<Edge>(edges.values());
+        Collections.sort(sorted, new Comparator<Edge>() {
+            @Override
+            public int compare(Edge a, Edge b) {
+                int result = a.caller.compareTo(b.caller);
+                if (result != 0) {
+                    return result;
+                }
+                if (a.methods != b.methods) {
+                    return b.methods - a.methods;
+                }
+                if (a.fields != b.fields) {
+                    return b.fields - a.fields;
+                }
+                return a.callee.compareTo(b.callee);
+            }
+        });
+
+        out.println("Package references:");
+        String caller = null;
+        for (Edge edge : sorted) {
+            if (!edge.caller.equals(caller)) {
+                caller = edge.caller;
+                out.println("    " + displayName(caller) + ":");
+            }
+            out.println(String.format("        -> %s: %d methods, %d fields",
+                    displayName(edge.callee), edge.methods, edge.fields));
+        }
+    }
+
+    private static String displayName(String packageName) {
+        return packageName.length() == 0 ? "<default>" : packageName;
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.persistent.dex;
+
+import com.android.dexdeps.DexData;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Receives the start and end of each phase of a run: opening an input,
+ * inflating an entry, each DexData load step, counting and output.
+ *
+ * Phases are reported by name ("open", "inflate", "load", "load string_ids",
+ * "generate", "output") for the input and DEX file last set.  That is kept
+ * per thread, since the stages of a DexPipeline work on different DEX
+ * files at the same time; each thread sets its own.
+ */
+abstract class Profiler implements DexInput.Listener, DexData.LoadListener {
+
+    /**
+     * What the phases on one thread belong to.
+     */
+    private static class Context {
+        String input = "";
+        String dex = "";
+        int dexIndex = -1;
+        Object stepMark;
+    }
+
+    /** The phase name of each load step, so it isn't built for every DEX file. */
+    private static final ConcurrentMap<String, String> stepPhases =
+            new ConcurrentHashMap<String, String>();
+
+    private final ThreadLocal<Context> context = new ThreadLocal<Context>() {
+        @Override
+        protected Context initialValue() {
+            return new Context();
+        }
+    };
+
+    /**
+     * Sets the input file that following phases on this thread belong to.
+     */
+    void setInput(String input) {
+        Context context = this.context.get();
+        context.input = input;
+        context.dex = "";
+        context.dexIndex = -1;
+    }
+
+    /**
+     * Sets the DEX file that following phases on this thread belong to,
+     * along with its index within the input.
+     */
+    void setDex(String dex, int dexIndex) {
+        Context context = this.context.get();
+        context.dex = dex;
+        context.dexIndex = dexIndex;
+    }
+
+    String getInput() {
+        return context.get().input;
+    }
+
+    String getDex() {
+        return context.get().dex;
+    }
+
+    int getDexIndex() {
+        return context.get().dexIndex;
+    }
+
+    /**
+     * Marks the start of a phase.
+     *
+     * @return a mark to pass to finish()
+     */
+    abstract Object start(String phase);
+
+    /**
+     * Records a phase that began at the given mark.
+     */
+    abstract void finish(Object mark, String phase, long bytesRead, long bytesInflated, long items);
+
+    @Override
+    public void inflateStarted(String name) {
+        context.get().stepMark = start("inflate");
+    }
+
+    @Override
+    public void inflateFinished(String name, long compressedSize, long size) {
+        Context context = this.context.get();
+        String previousDex = context.dex;
+        context.dex = name;
+        finish(context.stepMark, "inflate", compressedSize, size, 1);
+        context.dex = previousDex;
+    }
+
+    @Override
+    public void stepStarted(String step) {
+        context.get().stepMark = start(getStepPhase(step));
+    }
+
+    @Override
+    public void stepFinished(String step, int itemCount, int byteCount) {
+        finish(context.get().stepMark, getStepPhase(step), byteCount, 0, itemCount);
+    }
+
+    private static String getStepPhase(String step) {
+        String phase = stepPhases.get(step);
+        if (phase == null) {
+            phase = "load " + step;
+            stepPhases.put(step, phase);
+        }
+        return phase;
+    }
+
+    /**
+     * Returns a profiler that reports to both of the given ones, either of
+     * which may be null.
+     */
+    static Profiler combine(final Profiler first, final Profiler second) {
+        if (first == null) {
+            return second;
+        } else if (second == null) {
+            return first;
+        }
+        return new Profiler() {
+            @Override
+            void setInput(String input) {
+                first.setInput(input);
+                second.setInput(input);
+            }
+
+            @Override
+            void setDex(String dex, int dexIndex) {
+                first.setDex(dex, dexIndex);
+                second.setDex(dex, dexIndex);
+            }
+
+            @Override
+            Object start(String phase) {
+                return new Object[] { first.start(phase), second.start(phase) };
+            }
+
+            @Override
+            void finish(Object mark, String phase, long bytesRead, long bytesInflated, long items) {
+                Object[] marks = (Object[]) mark;
+                first.finish(marks[0], phase, bytesRead, bytesInflated, items);
+                second.finish(marks[1], phase, bytesRead, bytesInflated, items);
+            }
+
+            @Override
+            public void inflateStarted(String name) {
+                first.inflateStarted(name);
+                second.inflateStarted(name);
+            }
+
+            @Override
+            public void inflateFinished(String name, long compressedSize, long size) {
+                first.inflateFinished(name, compressedSize, size);
+                second.inflateFinished(name, compressedSize, size);
+            }
+
+            @Override
+            public void stepStarted(String step) {
+                first.stepStarted(step);
+                second.stepStarted(step);
+            }
+
+            @Override
+            public void stepFinished(String step, int itemCount, int byteCount) {
+                first.stepFinished(step, itemCount, byteCount);
+                second.stepFinished(step, itemCount, byteCount);
+            }
+        };
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.persistent.dex;
+
+import com.android.dexdeps.DexData;
+import com.android.dexdeps.Output;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * Works out how many method (or field) IDs removing some packages or
+ * classes would free.  That's the IDs they own, except those that the
+ * remaining code still refers to, plus the IDs of other classes that only
+ * the removed code refers to.
+ *
+ * Each DEX file is scanned once into a compact model: the owner of each
+ * counted ID, and the distinct (class, ID) references made by bytecode.
+ * Any number of removals can then be tried against the models.
+ */
+class RemovalSimulation {
+
+    private static final PrintStream out = System.out;
+
+    private static class DexModel {
+        String name;
+        String[] typeNames;     // dotted, with '$' kept
+        boolean[] typeDefined;
+        int[] owners;           // type index, or -1 for IDs that aren't counted
+        long[] references;      // from CodeReferences, grouped by type index
+        int count;
+    }
+
+    private static class Result {
+        int count;
+        int owned;
+        int orphaned;
+        int stillReferenced;
+    }
+
+    private final boolean countFields;
+    private final boolean includeClasses;
+    private final List<DexModel> dexes = new ArrayList<DexModel>();
+
+    RemovalSimulation(boolean countFields, boolean includeClasses) {
+        this.countFields = countFields;
+        this.includeClasses = includeClasses;
+    }
+
+    /**
+     * Returns the DEX tables that add() needs.
+     */
+    static EnumSet<DexData.Section> getRequiredSections() {
+        return EnumSet.of(DexData.Section.METHOD_IDS, DexData.Section.FIELD_IDS,
+                DexData.Section.CLASS_DEFS);
+    }
+
+    /**
+     * Builds the model of a loaded DEX file.  Only the IDs that the counts
+     * include (by the filter and the package filter) are considered.
+     */
+    void add(DexData dexData, String name, String packageFilter, DexCount.Filter filter) {
+        DexModel dex = new DexModel();
+        dex.name = name;
+        int typeCount = dexData.getTypeIdCount();
+        dex.typeNames = new String[typeCount];
+        boolean[] typeCounted = new boolean[typeCount];
+        for (int i = 0; i < typeCount; i++) {
+            String descriptor = dexData.getTypeName(i);
+            dex.typeNames[i] = Output.descriptorToDot(descriptor);
+            String packageName = includeClasses ?
+                    dex.typeNames[i].replace('$', '.') : Output.packageNameOnly(descriptor);
+            typeCounted[i] = packageFilter == null || packageName.startsWith(packageFilter);
+        }
+        dex.typeDefined = new boolean[typeCount];
+        int classDefCount = dexData.getClassDefCount();
+        int[] classTypes = new int[classDefCount];
+        for (int i = 0; i < classDefCount; i++) {
+            classTypes[i] = dexData.getClassDefClassIndex(i);
+            dex.typeDefined[classTypes[i]] = true;
+        }
+
+        int idCount = countFields ? dexData.getFieldIdCount() : dexData.getMethodIdCount();
+        dex.owners = new int[idCount];
+        for (int i = 0; i < idCount; i++) {
+            int owner = countFields ?
+                    dexData.getFieldDeclClassIndex(i) : dexData.getMethodDeclClassIndex(i);
+            if (typeCounted[owner] && filter.accepts(!dex.typeDefined[owner])) {
+                dex.owners[i] = owner;
+                dex.count++;
+            } else {
+                dex.owners[i] = -1;
+            }
+        }
+
+        int[] methodOwners = countFields ? filled(dexData.getMethodIdCount()) : dex.owners;
+        int[] fieldOwners = countFields ? dex.owners : filled(dexData.getFieldIdCount());
+        dex.references = CodeReferences.scan(dexData, classTypes, methodOwners, fieldOwners);
+        dexes.add(dex);
+    }
+
+    private static int[] filled(int count) {
+        int[] array = new int[count];
+        Arrays.fill(array, -1);
+        return array;
+    }
+
+    /**
+     * Prints the totals with each prefix removed on its own and, if there
+     * are several, with all of them removed together.
+     */
+    void output(List<String> prefixes, String countName) {
+        if (prefixes.size() > 1) {
+            for (String prefix : prefixes) {
+                output(Arrays.asList(prefix), countName);
+            }
+        }
+        out.println("Removing " + join(prefixes) + ":");
+        int overallBefore = 0;
+        int overallAfter = 0;
+        for (DexModel dex : dexes) {
+            Result result = simulate(dex, prefixes);
+            int after = result.count - result.owned - result.orphaned;
+            overallBefore += result.count;
+            overallAfter += after;
+            out.println(String.format(
+                    "    %s: %d -> %d %ss (%d in removed classes, %d only used by them," +
+                    " %d still used by the rest)", dex.name, result.count, after, countName,
+                    result.owned, result.orphaned, result.stillReferenced));
+        }
+        out.println(String.format("    Overall %s count: %d -> %d", countName,
+                overallBefore, overallAfter));
+    }
+
+    private static Result simulate(DexModel dex, List<String> prefixes) {
+        boolean[] removed = new boolean[dex.typeNames.length];
+        for (int i = 0; i < removed.length; i++) {
+            removed[i] = matches(dex.typeNames[i], prefixes);
+        }
+
+        boolean[] referenced = new boolean[dex.owners.length];
+        boolean[] referencedByRest = new boolean[dex.owners.length];
+        for (long key : dex.references) {
+            int idx = CodeReferences.getIndex(key);
+            referenced[idx] = true;
+            if (!removed[CodeReferences.getCaller(key)]) {
+                referencedByRest[idx] = true;
+            }
+        }
+
+        Result result = new Result();
+        result.count = dex.count;
+        for (int i = 0; i < dex.owners.length; i++) {
+            int owner = dex.owners[i];
+            if (owner < 0) {
+                continue;
+            }
+            if (removed[owner]) {
+                if (referencedByRest[i]) {
+                    result.stillReferenced++;
+                } else {
+                    result.owned++;
+                }
+            } else if (!dex.typeDefined[owner] && referenced[i] && !referencedByRest[i]) {
+                // A reference that only the removed code made.
+                result.orphaned++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns true if a class is covered by one of the prefixes, matching
+     * whole package or class name components.
+     */
+    private static boolean matches(String className, List<String> prefixes) {
+        for (String prefix : prefixes) {
+            if (className.startsWith(prefix) && (className.length() == prefix.length() ||
+                    className.charAt(prefix.length()) == '.' ||
+                    className.charAt(prefix.length()) == '$')) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String join(List<String> prefixes) {
+        StringBuilder joined = new StringBuilder();
+        for (String prefix : prefixes) {
+            if (joined.length() > 0) {
+                joined.append(", ");
+            }
+            joined.append(prefix);
+        }
+        return joined.toString();
+    }
+}
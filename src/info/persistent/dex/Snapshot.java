@@ -0,0 +1,349 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.persistent.dex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The counts of a run, kept in a compact binary file (--save-snapshot) so
+ * that they can be printed, ranked and checked against budgets again later
+ * (--load-snapshot) without the inputs.
+ *
+ * What's kept for each DEX file is its DexCount.Contribution: the lines
+ * generate() printed, and the count and code size of each class, before
+ * the package filter.  So a snapshot can be read back with other
+ * --include-classes, --package-filter, --max-depth, --output-style, --top
+ * or budget options, but only for the metric (what's counted, and how it's
+ * filtered) it was saved with.  An input counted with several metrics, in
+ * a batch, has a section for each.
+ *
+ * The layout, with every number an unsigned LEB128 varint:
+ *
+ *   "DXCS", then the version
+ *   the dictionary: its size, then each string (UTF-8 byte length, bytes)
+ *   the inputs: their number, then for each one
+ *     its name, and the number of metric sections, then for each one
+ *       the metric, and the number of DEX files, then for each one
+ *         its module and name, the number of notes, and the notes
+ *         the number of classes, then for each one (sorted by descriptor)
+ *           how many segments it shares with the class before it, the
+ *           number of segments that follow, the segments, count, code size
+ *
+ * Names, notes and metrics are dictionary indices.  Class descriptors are
+ * split into segments at '/', so a package's name is stored once however
+ * many classes it has, and each class only adds what differs from the one
+ * before it.
+ */
+class Snapshot {
+
+    private static final byte[] MAGIC = { 'D', 'X', 'C', 'S' };
+    private static final int VERSION = 1;
+
+    /**
+     * A counted DEX file.
+     */
+    static class Dex {
+        final String module;
+        final String name;
+        final DexCount.Contribution contribution;
+
+        Dex(String module, String name, DexCount.Contribution contribution) {
+            this.module = module;
+            this.name = name;
+            this.contribution = contribution;
+        }
+    }
+
+    /**
+     * A counted input, with the DEX files counted for each metric.
+     */
+    static class Input {
+        final String name;
+        final Map<String, List<Dex>> sections = new LinkedHashMap<String, List<Dex>>();
+
+        Input(String name) {
+            this.name = name;
+        }
+    }
+
+    private final List<Input> inputs = new ArrayList<Input>();
+    private List<Dex> currentSection;
+
+    /**
+     * Starts recording the DEX files of an input as counted for a metric.
+     */
+    void startInput(String name, String metric) {
+        Input input = null;
+        for (Input existing : inputs) {
+            if (existing.name.equals(name) && !existing.sections.containsKey(metric)) {
+                input = existing;
+                break;
+            }
+        }
+        if (input == null) {
+            input = new Input(name);
+            inputs.add(input);
+        }
+        currentSection = new ArrayList<Dex>();
+        input.sections.put(metric, currentSection);
+    }
+
+    /**
+     * Records a DEX file of the current input.
+     */
+    void addDex(String module, String name, DexCount.Contribution contribution) {
+        currentSection.add(new Dex(module, name, contribution));
+    }
+
+    List<Input> getInputs() {
+        return inputs;
+    }
+
+    /**
+     * Returns the metrics that any input was counted with.
+     */
+    List<String> getMetrics() {
+        List<String> metrics = new ArrayList<String>();
+        for (Input input : inputs) {
+            for (String metric : input.sections.keySet()) {
+                if (!metrics.contains(metric)) {
+                    metrics.add(metric);
+                }
+            }
+        }
+        return metrics;
+    }
+
+    void write(String fileName) throws IOException {
+        Map<String, Integer> dictionary = new LinkedHashMap<String, Integer>();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        writeVarint(body, inputs.size());
+        for (Input input : inputs) {
+            writeString(body, dictionary, input.name);
+            writeVarint(body, input.sections.size());
+            for (Map.Entry<String, List<Dex>> section : input.sections.entrySet()) {
+                writeString(body, dictionary, section.getKey());
+                writeVarint(body, section.getValue().size());
+                for (Dex dex : section.getValue()) {
+                    writeDex(body, dictionary, dex);
+                }
+            }
+        }
+
+        OutputStream out = new FileOutputStream(fileName);
+        try {
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            header.write(MAGIC);
+            writeVarint(header, VERSION);
+            writeVarint(header, dictionary.size());
+            for (String string : dictionary.keySet()) {
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                writeVarint(header, bytes.length);
+                header.write(bytes);
+            }
+            header.writeTo(out);
+            body.writeTo(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeDex(ByteArrayOutputStream out, Map<String, Integer> dictionary,
+            Dex dex) {
+        writeString(out, dictionary, dex.module);
+        writeString(out, dictionary, dex.name);
+        List<String> notes = dex.contribution.getNotes();
+        writeVarint(out, notes.size());
+        for (String note : notes) {
+            writeString(out, dictionary, note);
+        }
+
+        Map<String, long[]> classes = new TreeMap<String, long[]>(dex.contribution.getClasses());
+        writeVarint(out, classes.size());
+        String[] previous = new String[0];
+        for (Map.Entry<String, long[]> e : classes.entrySet()) {
+            String[] segments = e.getKey().split("/", -1);
+            int shared = 0;
+            while (shared < previous.length && shared < segments.length &&
+                    segments[shared].equals(previous[shared])) {
+                shared++;
+            }
+            writeVarint(out, shared);
+            writeVarint(out, segments.length - shared);
+            for (int i = shared; i < segments.length; i++) {
+                writeString(out, dictionary, segments[i]);
+            }
+            writeVarint(out, e.getValue()[0]);
+            writeVarint(out, e.getValue()[1]);
+            previous = segments;
+        }
+    }
+
+    private static void writeString(ByteArrayOutputStream out, Map<String, Integer> dictionary,
+            String string) {
+        Integer index = dictionary.get(string);
+        if (index == null) {
+            index = dictionary.size();
+            dictionary.put(string, index);
+        }
+        writeVarint(out, index);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Reads a snapshot written by write().
+     *
+     * @throws IOException if the file can't be read, or isn't a snapshot
+     */
+    static Snapshot read(String fileName) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(Paths.get(fileName)));
+        try {
+            for (byte b : MAGIC) {
+                if (in.get() != b) {
+                    throw new IOException(fileName + " is not a snapshot");
+                }
+            }
+            int version = readInt(in);
+            if (version != VERSION) {
+                throw new IOException(fileName + " is a version " + version +
+                        " snapshot, which can't be read");
+            }
+            String[] dictionary = new String[readInt(in)];
+            for (int i = 0; i < dictionary.length; i++) {
+                byte[] bytes = new byte[readInt(in)];
+                in.get(bytes);
+                dictionary[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+
+            Snapshot snapshot = new Snapshot();
+            Map<String, String> descriptors = new HashMap<String, String>();
+            int inputCount = readInt(in);
+            for (int i = 0; i < inputCount; i++) {
+                Input input = new Input(readString(in, dictionary));
+                int sectionCount = readInt(in);
+                for (int j = 0; j < sectionCount; j++) {
+                    String metric = readString(in, dictionary);
+                    int dexCount = readInt(in);
+                    List<Dex> dexes = new ArrayList<Dex>(dexCount);
+                    for (int k = 0; k < dexCount; k++) {
+                        dexes.add(readDex(in, dictionary, descriptors));
+                    }
+                    input.sections.put(metric, dexes);
+                }
+                snapshot.inputs.add(input);
+            }
+            return snapshot;
+        } catch (BufferUnderflowException bue) {
+            throw new IOException(fileName + " is truncated");
+        } catch (IllegalArgumentException iae) {
+            throw new IOException(fileName + " is corrupt: " + iae.getMessage());
+        }
+    }
+
+    private static Dex readDex(ByteBuffer in, String[] dictionary,
+            Map<String, String> descriptors) {
+        String module = readString(in, dictionary);
+        String name = readString(in, dictionary);
+        DexCount.Contribution contribution = new DexCount.Contribution();
+        int noteCount = readInt(in);
+        for (int i = 0; i < noteCount; i++) {
+            contribution.getNotes().add(readString(in, dictionary));
+        }
+
+        int classCount = readInt(in);
+        String[] segments = new String[0];
+        StringBuilder descriptor = new StringBuilder();
+        for (int i = 0; i < classCount; i++) {
+            int shared = readInt(in);
+            int added = readInt(in);
+            if (shared > segments.length) {
+                throw new IllegalArgumentException("bad class segment count");
+            }
+            String[] current = new String[shared + added];
+            System.arraycopy(segments, 0, current, 0, shared);
+            for (int j = shared; j < current.length; j++) {
+                current[j] = readString(in, dictionary);
+            }
+            segments = current;
+
+            descriptor.setLength(0);
+            for (int j = 0; j < segments.length; j++) {
+                if (j > 0) {
+                    descriptor.append('/');
+                }
+                descriptor.append(segments[j]);
+            }
+            // The same classes come up in every DEX file and input, so keep
+            // one copy of each name.
+            String key = descriptor.toString();
+            String canonical = descriptors.get(key);
+            if (canonical == null) {
+                descriptors.put(key, key);
+                canonical = key;
+            }
+            contribution.getClasses().put(canonical, new long[] { readLong(in), readLong(in) });
+        }
+        return new Dex(module, name, contribution);
+    }
+
+    private static String readString(ByteBuffer in, String[] dictionary) {
+        int index = readInt(in);
+        if (index >= dictionary.length) {
+            throw new IllegalArgumentException("bad dictionary index " + index);
+        }
+        return dictionary[index];
+    }
+
+    private static int readInt(ByteBuffer in) {
+        long value = readLong(in);
+        if (value > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("bad number " + value);
+        }
+        return (int) value;
+    }
+
+    private static long readLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.get();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("bad number");
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.persistent.dex;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects timing and allocation statistics for each phase of a run
+ * (--stats), per input and per DEX file.
+ *
+ * Bytes read are the compressed bytes for inflation, the DEX size for
+ * loading it, and the extent of the file covered for each load step.
+ * Items are the number of entries read (strings, IDs, class defs...).
+ * Allocated bytes come from the JVM's per-thread allocation counter, where
+ * it's supported.  There's no such counter for the number of objects, so
+ * allocation is only measured in bytes.
+ */
+class Stats extends Profiler {
+
+    /**
+     * The start of a phase.
+     */
+    class Mark {
+        final long nanos = System.nanoTime();
+        final long allocatedBytes = getAllocatedBytes();
+    }
+
+    private static class Row {
+        String input;
+        String dex;
+        String phase;
+        long nanos;
+        long bytesRead;
+        long bytesInflated;
+        long allocatedBytes;
+        long items;
+    }
+
+    private final com.sun.management.ThreadMXBean threadBean;
+    private final List<Row> rows = new ArrayList<Row>();
+
+    Stats() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean &&
+                ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            threadBean = (com.sun.management.ThreadMXBean) bean;
+            threadBean.setThreadAllocatedMemoryEnabled(true);
+        } else {
+            threadBean = null;
+        }
+    }
+
+    private long getAllocatedBytes() {
+        if (threadBean == null) {
+            return 0;
+        }
+        return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    @Override
+    Object start(String phase) {
+        return new Mark();
+    }
+
+    @Override
+    synchronized void finish(Object start, String phase, long bytesRead, long bytesInflated, long items) {
+        Mark mark = (Mark) start;
+        Row row = new Row();
+        row.nanos = System.nanoTime() - mark.nanos;
+        row.allocatedBytes = getAllocatedBytes() - mark.allocatedBytes;
+        row.input = getInput();
+        row.dex = getDex();
+        row.phase = phase;
+        row.bytesRead = bytesRead;
+        row.bytesInflated = bytesInflated;
+        row.items = items;
+        rows.add(row);
+    }
+
+    /**
+     * Prints the statistics as an aligned table, followed by totals for
+     * each phase.
+     */
+    synchronized void print(PrintStream out) {
+        String format = "%-30s %-20s %-22s %10s %12s %14s %14s %10s\n";
+        out.printf(format, "input", "dex", "phase", "wall ms", "bytes read",
+                "bytes inflated", "allocated", "items");
+        for (Row row : rows) {
+            out.printf(format, shorten(row.input, 30), shorten(row.dex, 20), row.phase,
+                    formatMillis(row.nanos), row.bytesRead, row.bytesInflated,
+                    row.allocatedBytes, row.items);
+        }
+
+        out.println();
+        out.printf(format, "", "", "phase total", "wall ms", "bytes read",
+                "bytes inflated", "allocated", "items");
+        for (Row total : getPhaseTotals()) {
+            out.printf(format, "", "", total.phase, formatMillis(total.nanos),
+                    total.bytesRead, total.bytesInflated, total.allocatedBytes, total.items);
+        }
+    }
+
+    /**
+     * Writes the statistics as tab-separated values, with a header line.
+     */
+    synchronized void write(String fileName) throws IOException {
+        PrintStream out = new PrintStream(new FileOutputStream(fileName), false, "UTF-8");
+        try {
+            out.print("input\tdex\tphase\twall_ns\tbytes_read\tbytes_inflated\tallocated_bytes\titems\n");
+            for (Row row : rows) {
+                out.print(row.input + "\t" + row.dex + "\t" + row.phase + "\t" + row.nanos + "\t" +
+                        row.bytesRead + "\t" + row.bytesInflated + "\t" + row.allocatedBytes + "\t" +
+                        row.items + "\n");
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private List<Row> getPhaseTotals() {
+        Map<String, Row> totals = new LinkedHashMap<String, Row>();
+        for (Row row : rows) {
+            Row total = totals.get(row.phase);
+            if (total == null) {
+                total = new Row();
+                total.phase = row.phase;
+                totals.put(row.phase, total);
+            }
+            total.nanos += row.nanos;
+            total.bytesRead += row.bytesRead;
+            total.bytesInflated += row.bytesInflated;
+            total.allocatedBytes += row.allocatedBytes;
+            total.items += row.items;
+        }
+        return new ArrayList<Row>(totals.values());
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.format("%.3f", nanos / 1e6);
+    }
+
+    private static String shorten(String s, int length) {
+        return s.length() <= length ? s : "..." + s.substring(s.length() - length + 3);
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.persistent.dex;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.ZipException;
+
+/**
+ * Finds the "classes*.dex" entries of a zip archive by reading its central
+ * directory straight out of a memory-mapped file (or an in-memory copy of
+ * a nested archive).
+ *
+ * Unlike ZipFile, this doesn't create an entry object (or even a name
+ * string) for every file in the archive, which matters for APKs with tens
+ * of thousands of resources.  All we keep is the central directory offset
+ * of each matching entry; everything else is read back from the buffer
+ * on demand.
+ */
+class ZipDexScanner {
+    static final int METHOD_STORED = 0;
+    static final int METHOD_DEFLATED = 8;
+
+    /** A top-level "classes*.dex" entry. */
+    static final int KIND_DEX = 1;
+    /** A "module/dex/classes*.dex" entry in an app bundle. */
+    static final int KIND_BUNDLE_DEX = 2;
+    /** A nested .apk/.jar/.aar/.zip archive. */
+    static final int KIND_ARCHIVE = 3;
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int CEN_SIGNATURE = 0x02014b50;
+    private static final int CEN_SIZE = 46;
+    private static final int LOC_SIGNATURE = 0x04034b50;
+    private static final int LOC_SIZE = 30;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    private static final byte[] DEX_PREFIX = "classes".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DEX_SUFFIX = ".dex".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BUNDLE_DEX_INFIX = "/dex/".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[][] ARCHIVE_SUFFIXES = {
+        ".apk".getBytes(StandardCharsets.US_ASCII),
+        ".jar".getBytes(StandardCharsets.US_ASCII),
+        ".aar".getBytes(StandardCharsets.US_ASCII),
+        ".zip".getBytes(StandardCharsets.US_ASCII),
+    };
+
+    private final ByteBuffer zip;
+    private int[] entries = new int[4];
+    private int[] kinds = new int[4];
+    private int entryCount = 0;
+    private boolean hasTopLevelDex = false;
+
+    private ZipDexScanner(ByteBuffer zip) {
+        this.zip = zip;
+    }
+
+    /**
+     * Maps the file and scans its central directory.
+     *
+     * @return the scanner, or null if the file isn't a zip archive
+     * @throws ZipException if it's a zip archive that we can't read this way
+     *     (ZIP64 or larger than we can map), in which case ZipFile should be
+     *     used instead
+     */
+    static ZipDexScanner open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        ByteBuffer zip;
+        try {
+            long size = raf.length();
+            if (size > Integer.MAX_VALUE) {
+                throw new ZipException("Archive is too large to map");
+            }
+            zip = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } finally {
+            // The mapping stays valid after the file is closed.
+            raf.close();
+        }
+        return scan(zip);
+    }
+
+    /**
+     * Scans the central directory of an archive that's already in memory.
+     *
+     * @return the scanner, or null if the data isn't a zip archive
+     * @throws ZipException if it's a ZIP64 archive
+     */
+    static ZipDexScanner scan(ByteBuffer data) throws ZipException {
+        ByteBuffer zip = data.slice();
+        zip.order(ByteOrder.LITTLE_ENDIAN);
+
+        ZipDexScanner scanner = new ZipDexScanner(zip);
+        if (!scanner.scan()) {
+            return null;
+        }
+        return scanner;
+    }
+
+    /**
+     * Locates the end of central directory record and walks the central
+     * directory, remembering the entries that look like DEX files or
+     * nested archives.
+     *
+     * @return false if there's no valid central directory
+     */
+    private boolean scan() throws ZipException {
+        int eocd = findEndOfCentralDirectory();
+        if (eocd < 0) {
+            return false;
+        }
+
+        int totalEntries = zip.getShort(eocd + 10) & 0xffff;
+        long cenSize = zip.getInt(eocd + 12) & 0xffffffffL;
+        long cenOffset = zip.getInt(eocd + 16) & 0xffffffffL;
+        if (totalEntries == 0xffff || cenOffset == 0xffffffffL) {
+            throw new ZipException("ZIP64 archives are not supported");
+        }
+        if (cenOffset + cenSize > eocd) {
+            return false;
+        }
+
+        int pos = (int) cenOffset;
+        for (int i = 0; i < totalEntries; i++) {
+            if (pos + CEN_SIZE > eocd || zip.getInt(pos) != CEN_SIGNATURE) {
+                return false;
+            }
+            int nameLength = zip.getShort(pos + 28) & 0xffff;
+            int extraLength = zip.getShort(pos + 30) & 0xffff;
+            int commentLength = zip.getShort(pos + 32) & 0xffff;
+
+            int kind = classifyName(zip, pos + CEN_SIZE, nameLength);
+            if (kind != 0) {
+                if (entryCount == entries.length) {
+                    entries = Arrays.copyOf(entries, entryCount * 2);
+                    kinds = Arrays.copyOf(kinds, entryCount * 2);
+                }
+                entries[entryCount] = pos;
+                kinds[entryCount] = kind;
+                entryCount++;
+                hasTopLevelDex |= kind == KIND_DEX;
+            }
+            pos += CEN_SIZE + nameLength + extraLength + commentLength;
+        }
+        return true;
+    }
+
+    /**
+     * Searches backwards for the end of central directory record, which is
+     * followed by a comment of up to 64K.
+     */
+    private int findEndOfCentralDirectory() {
+        int limit = zip.limit();
+        int minPos = Math.max(0, limit - EOCD_SIZE - MAX_COMMENT_SIZE);
+        for (int pos = limit - EOCD_SIZE; pos >= minPos; pos--) {
+            if (zip.getInt(pos) == EOCD_SIGNATURE) {
+                int commentLength = zip.getShort(pos + 20) & 0xffff;
+                if (pos + EOCD_SIZE + commentLength <= limit) {
+                    return pos;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Works out what kind of entry a name refers to, looking at the raw
+     * name bytes.
+     *
+     * @return one of the KIND_* constants, or 0 for entries we don't want
+     */
+    static int classifyName(ByteBuffer buf, int pos, int length) {
+        // The equivalent of the "classes.*\.dex" regex.
+        if (regionMatches(buf, pos, length, DEX_PREFIX, 0) &&
+                regionMatches(buf, pos, length, DEX_SUFFIX, length - DEX_SUFFIX.length) &&
+                length >= DEX_PREFIX.length + DEX_SUFFIX.length) {
+            return KIND_DEX;
+        }
+
+        // "module/dex/classes*.dex", with no further directories.
+        int slash = indexOf(buf, pos, length, (byte) '/');
+        if (slash > 0 &&
+                regionMatches(buf, pos, length, BUNDLE_DEX_INFIX, slash) &&
+                indexOf(buf, pos + slash + BUNDLE_DEX_INFIX.length,
+                        length - slash - BUNDLE_DEX_INFIX.length, (byte) '/') < 0 &&
+                classifyName(buf, pos + slash + BUNDLE_DEX_INFIX.length,
+                        length - slash - BUNDLE_DEX_INFIX.length) == KIND_DEX) {
+            return KIND_BUNDLE_DEX;
+        }
+
+        for (byte[] suffix : ARCHIVE_SUFFIXES) {
+            if (regionMatches(buf, pos, length, suffix, length - suffix.length)) {
+                return KIND_ARCHIVE;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Works out what kind of entry a name refers to.
+     */
+    static int classifyName(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        return classifyName(ByteBuffer.wrap(bytes), 0, bytes.length);
+    }
+
+    private static boolean regionMatches(
+            ByteBuffer buf, int pos, int length, byte[] expected, int offset) {
+        if (offset < 0 || offset + expected.length > length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (buf.get(pos + offset + i) != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(ByteBuffer buf, int pos, int length, byte value) {
+        for (int i = 0; i < length; i++) {
+            if (buf.get(pos + i) == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the number of entries found, in central directory order.
+     */
+    int getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * Returns true if there are "classes*.dex" entries at the top level of
+     * the archive (i.e. it's an APK or a dexed jar).
+     */
+    boolean hasTopLevelDex() {
+        return hasTopLevelDex;
+    }
+
+    /**
+     * Returns the kind of an entry, one of the KIND_* constants.
+     */
+    int getKind(int idx) {
+        return kinds[idx];
+    }
+
+    /**
+     * Returns the name of an entry.
+     */
+    String getName(int idx) {
+        int cen = entries[idx];
+        byte[] name = new byte[zip.getShort(cen + 28) & 0xffff];
+        for (int i = 0; i < name.length; i++) {
+            name[i] = zip.get(cen + CEN_SIZE + i);
+        }
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the compression method (METHOD_STORED or METHOD_DEFLATED) of
+     * an entry.
+     */
+    int getMethod(int idx) {
+        return zip.getShort(entries[idx] + 10) & 0xffff;
+    }
+
+    /**
+     * Returns the CRC-32 of an entry's uncompressed data.
+     */
+    int getCrc(int idx) {
+        return zip.getInt(entries[idx] + 16);
+    }
+
+    /**
+     * Returns the compressed size of an entry.
+     */
+    int getCompressedSize(int idx) {
+        return zip.getInt(entries[idx] + 20);
+    }
+
+    /**
+     * Returns the uncompressed size of an entry.
+     */
+    int getSize(int idx) {
+        return zip.getInt(entries[idx] + 24);
+    }
+
+    /**
+     * Returns the offset at which an entry's (possibly compressed) data
+     * starts, which we have to get from its local header.
+     */
+    int getDataOffset(int idx) throws ZipException {
+        int loc = zip.getInt(entries[idx] + 42);
+        if (loc < 0 || loc + LOC_SIZE > zip.limit() ||
+                zip.getInt(loc) != LOC_SIGNATURE) {
+            throw new ZipException("Bad local header for " + getName(idx));
+        }
+        int nameLength = zip.getShort(loc + 26) & 0xffff;
+        int extraLength = zip.getShort(loc + 28) & 0xffff;
+        return loc + LOC_SIZE + nameLength + extraLength;
+    }
+
+    /**
+     * Returns a view of an entry's (possibly compressed) data within the
+     * mapped archive.  No bytes are copied.
+     */
+    ByteBuffer getData(int idx) throws ZipException {
+        int offset = getDataOffset(idx);
+        int size = getCompressedSize(idx);
+        if (size < 0 || offset + size > zip.limit()) {
+            throw new ZipException("Truncated entry " + getName(idx));
+        }
+        ByteBuffer data = zip.duplicate();
+        data.limit(offset + size).position(offset);
+        return data.slice();
+    }
+}